@@ -14,6 +14,8 @@ package org.selman.js.builder;
 import org.eclipse.jface.resource.ImageDescriptor;
 import org.eclipse.ui.plugin.AbstractUIPlugin;
 import org.osgi.framework.BundleContext;
+import org.selman.js.builder.upload.UploadService;
+import org.selman.scp.SessionPool;
 
 /**
  * The activator class controls the plug-in life cycle
@@ -39,6 +41,8 @@ public class Activator extends AbstractUIPlugin {
 	public void start(BundleContext context) throws Exception {
 		super.start(context);
 		plugin = this;
+		// resume the uploads left pending by the last session
+		UploadService.getDefault();
 	}
 
 	/*
@@ -46,6 +50,8 @@ public class Activator extends AbstractUIPlugin {
 	 * @see org.eclipse.ui.plugin.AbstractUIPlugin#stop(org.osgi.framework.BundleContext)
 	 */
 	public void stop(BundleContext context) throws Exception {
+		UploadService.shutdown();
+		SessionPool.getDefault().closeAll();
 		plugin = null;
 		super.stop(context);
 	}
@@ -69,4 +75,16 @@ public class Activator extends AbstractUIPlugin {
 	public static ImageDescriptor getImageDescriptor(String path) {
 		return imageDescriptorFromPlugin(PLUGIN_ID, path);
 	}
+
+	/**
+	 * Prints a diagnostic message when the plug-in is running with the
+	 * org.selman.js.builder/debug option enabled.
+	 *
+	 * @param message the message to print
+	 */
+	public static void trace(String message) {
+		if (plugin != null && plugin.isDebugging()) {
+			System.out.println("[" + PLUGIN_ID + "] " + message); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+	}
 }
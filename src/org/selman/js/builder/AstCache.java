@@ -0,0 +1,236 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Daniel Selman}.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Daniel Selman - initial API and implementation and/or initial documentation
+ *******************************************************************************/
+
+package org.selman.js.builder;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.wst.jsdt.core.IJavaScriptUnit;
+import org.eclipse.wst.jsdt.core.JavaScriptModelException;
+import org.eclipse.wst.jsdt.core.dom.AST;
+import org.eclipse.wst.jsdt.core.dom.ASTNode;
+import org.eclipse.wst.jsdt.core.dom.ASTParser;
+import org.eclipse.wst.jsdt.core.dom.JavaScriptUnit;
+
+/**
+ * A bounded LRU cache of parsed JavaScriptUnit ASTs. Entries are keyed by the
+ * path of the underlying IFile and are only returned while the modification
+ * stamp of the file is unchanged, so a stale AST is never handed out.
+ * <p>
+ * ASTs returned by {@link #get(IJavaScriptUnit)} are shared and must be
+ * treated as read-only. Callers that need to modify an AST (for example to
+ * record and rewrite modifications) must use
+ * {@link #checkout(IJavaScriptUnit)} which parses an AST owned by the
+ * caller, since nodes of a shared AST may still be referenced by others.
+ *
+ * @author dselman
+ */
+public class AstCache {
+
+	/**
+	 * A cached AST and the modification stamp of the file it was parsed from.
+	 */
+	private static class CachedAst {
+		final long stamp;
+		final JavaScriptUnit root;
+
+		CachedAst(long stamp, JavaScriptUnit root) {
+			this.stamp = stamp;
+			this.root = root;
+		}
+	}
+
+	private final LinkedHashMap<IPath, CachedAst> entries = new LinkedHashMap<IPath, CachedAst>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(Map.Entry<IPath, CachedAst> eldest) {
+			return size() > capacity;
+		}
+	};
+
+	private int capacity;
+	private int hits;
+	private int misses;
+
+	/**
+	 * Creates a cache holding at most the given number of ASTs.
+	 *
+	 * @param capacity
+	 */
+	public AstCache(int capacity) {
+		this.capacity = Math.max(0, capacity);
+	}
+
+	/**
+	 * Changes the maximum number of ASTs held by the cache, evicting the least
+	 * recently used entries if required.
+	 *
+	 * @param capacity
+	 */
+	public synchronized void setCapacity(int capacity) {
+		this.capacity = Math.max(0, capacity);
+		while (entries.size() > this.capacity) {
+			entries.remove(entries.keySet().iterator().next());
+		}
+	}
+
+	/**
+	 * Returns a shared, read-only AST for the given unit, parsing it if it is
+	 * not in the cache or if the file has been modified since it was cached.
+	 *
+	 * @param unit
+	 * @return
+	 */
+	public JavaScriptUnit get(IJavaScriptUnit unit) {
+		IFile file = getCacheableFile(unit);
+		if (file == null) {
+			return parse(unit);
+		}
+
+		long stamp = file.getModificationStamp();
+		synchronized (this) {
+			CachedAst entry = entries.get(file.getFullPath());
+			if (entry != null && entry.stamp == stamp) {
+				hits++;
+				return entry.root;
+			}
+			misses++;
+		}
+
+		JavaScriptUnit root = parse(unit);
+		synchronized (this) {
+			if (capacity > 0) {
+				entries.put(file.getFullPath(), new CachedAst(stamp, root));
+			}
+		}
+		return root;
+	}
+
+	/**
+	 * Returns a newly parsed AST for the given unit that the caller may
+	 * modify. The cached AST is never returned, as Functions read from it may
+	 * still be waiting to be copied elsewhere. Any cached AST for the unit is
+	 * removed from the cache, since the caller is about to change the file.
+	 *
+	 * @param unit
+	 * @return
+	 */
+	public JavaScriptUnit checkout(IJavaScriptUnit unit) {
+		IFile file = getCacheableFile(unit);
+		synchronized (this) {
+			if (file != null) {
+				entries.remove(file.getFullPath());
+			}
+			misses++;
+		}
+		return parse(unit);
+	}
+
+	/**
+	 * Removes any cached AST for the given file.
+	 *
+	 * @param file
+	 */
+	public synchronized void invalidate(IFile file) {
+		entries.remove(file.getFullPath());
+	}
+
+	/**
+	 * Removes all cached ASTs.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * Returns the number of ASTs currently cached.
+	 *
+	 * @return
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Returns the number of requests that were served from the cache since the
+	 * counters were last reset.
+	 *
+	 * @return
+	 */
+	public synchronized int getHits() {
+		return hits;
+	}
+
+	/**
+	 * Returns the number of requests that required a parse since the counters
+	 * were last reset.
+	 *
+	 * @return
+	 */
+	public synchronized int getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Resets the hit and miss counters.
+	 */
+	public synchronized void resetCounters() {
+		hits = 0;
+		misses = 0;
+	}
+
+	/**
+	 * Returns the file backing the given unit, or null if ASTs for the unit
+	 * cannot be cached because it is not a workspace file or because its
+	 * buffer holds unsaved changes.
+	 *
+	 * @param unit
+	 * @return
+	 */
+	private IFile getCacheableFile(IJavaScriptUnit unit) {
+		IResource resource = unit.getResource();
+		if (!(resource instanceof IFile)) {
+			return null;
+		}
+		try {
+			if (unit.isOpen() && unit.hasUnsavedChanges()) {
+				return null;
+			}
+		} catch (JavaScriptModelException e) {
+			return null;
+		}
+		return (IFile) resource;
+	}
+
+	/**
+	 * Creates a JavaScriptUnit so we can access the AST for a IJavaScriptUnit.
+	 *
+	 * @param unit
+	 * @return
+	 */
+	private JavaScriptUnit parse(IJavaScriptUnit unit) {
+		try {
+			ASTParser c = ASTParser.newParser(AST.JLS2);
+			c.setSource(unit);
+			c.setResolveBindings(false);
+			ASTNode result = c.createAST(null);
+			return (JavaScriptUnit) result;
+		} catch (IllegalStateException e) {
+			// convert ASTParser's complaints into old form
+			throw new IllegalArgumentException();
+		}
+	}
+}
@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Daniel Selman}.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Daniel Selman - initial API and implementation and/or initial documentation
+ *******************************************************************************/
+
+package org.selman.js.builder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Replaces the content of a state file so that a crash at any point leaves
+ * either the old content or the new content, never a partial file or none.
+ * The new content is written to a temporary file and synced to disk before
+ * it takes the place of the old file. Where a file cannot be renamed over
+ * another, as on Windows, the old file is first moved aside to a backup,
+ * which {@link #getBaseFile()} restores if the replacement was interrupted.
+ *
+ * @author dselman
+ */
+public class AtomicFile {
+
+	private final File file;
+	private final File tmp;
+	private final File backup;
+
+	/**
+	 * @param file
+	 *            the state file
+	 */
+	public AtomicFile(File file) {
+		this.file = file;
+		this.tmp = new File(file.getPath() + ".tmp");
+		this.backup = new File(file.getPath() + ".bak");
+	}
+
+	/**
+	 * Returns the state file to read, first restoring the old content if a
+	 * replacement was interrupted.
+	 *
+	 * @return
+	 */
+	public File getBaseFile() {
+		if (backup.isFile()) {
+			if (file.isFile()) {
+				// the replacement completed, only the cleanup did not
+				backup.delete();
+			} else {
+				backup.renameTo(file);
+			}
+		}
+		return file;
+	}
+
+	/**
+	 * Opens the temporary file the new content is written to.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	public FileOutputStream startWrite() throws IOException {
+		getBaseFile();
+		file.getParentFile().mkdirs();
+		return new FileOutputStream(tmp);
+	}
+
+	/**
+	 * Syncs the new content to disk, closes it and replaces the state file
+	 * with it.
+	 *
+	 * @param out
+	 *            the stream returned by {@link #startWrite()}, which may be
+	 *            wrapped but must not have been closed
+	 * @return true if the state file was replaced
+	 * @throws IOException
+	 */
+	public boolean finishWrite(FileOutputStream out) throws IOException {
+		try {
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (tmp.renameTo(file)) {
+			return true;
+		}
+		// cannot rename over the old file, move it aside first
+		backup.delete();
+		if (file.isFile() && !file.renameTo(backup)) {
+			tmp.delete();
+			return false;
+		}
+		if (!tmp.renameTo(file)) {
+			backup.renameTo(file);
+			tmp.delete();
+			return false;
+		}
+		backup.delete();
+		return true;
+	}
+
+	/**
+	 * Abandons the new content after a failure to write it.
+	 *
+	 * @param out
+	 *            the stream returned by {@link #startWrite()}
+	 */
+	public void failWrite(FileOutputStream out) {
+		try {
+			out.close();
+		} catch (IOException e) {
+		}
+		tmp.delete();
+	}
+
+	/**
+	 * Deletes the state file.
+	 */
+	public void delete() {
+		file.delete();
+		tmp.delete();
+		backup.delete();
+	}
+}
@@ -0,0 +1,566 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Daniel Selman}.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Daniel Selman - initial API and implementation and/or initial documentation
+ *******************************************************************************/
+
+package org.selman.js.builder;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.Path;
+
+/**
+ * Records which Functions have been copied from a source resource into which
+ * destination resources. The index replaces a scan of every JavaScript file
+ * in the workspace when a source resource is removed: only the destinations
+ * recorded against the source need to be opened.
+ * <p>
+ * Each edge of the graph also remembers a fingerprint of the Function as it
+ * was generated into the destination and the modification stamp of the
+ * destination when the Function was last copied, so the builder can skip
+ * edges whose output would not change. The
+ * graph can be queried for the resources affected by a change to a source
+ * resource.
+ * <p>
+ * The index is persisted to a file in the plug-in state location. An index
+ * that could not be loaded is marked as incomplete until a full build has
+ * repopulated it.
+ *
+ * @author dselman
+ */
+public class CopyIndex {
+
+	private static final String HEADER = "# js.builder copy index 2";
+
+	private static final String SEPARATOR = "\t";
+
+	/**
+	 * A Function copied from a source resource to a destination resource.
+	 */
+	public static class Edge {
+		private final IPath source;
+		private final String function;
+		private final IPath destination;
+		private String fingerprint;
+		private long destinationStamp = IResource.NULL_STAMP;
+
+		public Edge(IPath source, String function, IPath destination) {
+			this.source = source;
+			this.function = function;
+			this.destination = destination;
+		}
+
+		/**
+		 * Returns the full path of the resource the Function was copied from.
+		 *
+		 * @return
+		 */
+		public IPath getSource() {
+			return source;
+		}
+
+		/**
+		 * Returns the name of the copied Function.
+		 *
+		 * @return
+		 */
+		public String getFunction() {
+			return function;
+		}
+
+		/**
+		 * Returns the full path of the resource the Function was copied to.
+		 *
+		 * @return
+		 */
+		public IPath getDestination() {
+			return destination;
+		}
+
+		/**
+		 * Returns the fingerprint of the Function as it was last generated
+		 * into the destination, or null if it is not known.
+		 *
+		 * @return
+		 */
+		public String getFingerprint() {
+			return fingerprint;
+		}
+
+		/**
+		 * Returns the modification stamp of the destination resource after the
+		 * Function was last copied, or IResource.NULL_STAMP if it is not known.
+		 *
+		 * @return
+		 */
+		public long getDestinationStamp() {
+			return destinationStamp;
+		}
+
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Edge)) {
+				return false;
+			}
+			Edge that = (Edge) obj;
+			return source.equals(that.source) && function.equals(that.function)
+					&& destination.equals(that.destination);
+		}
+
+		public int hashCode() {
+			return (source.hashCode() * 31 + function.hashCode()) * 31
+					+ destination.hashCode();
+		}
+
+		public String toString() {
+			return source + "#" + function + " -> " + destination;
+		}
+	}
+
+	private static final Map<IProject, CopyIndex> indexes = new HashMap<IProject, CopyIndex>();
+
+	private final File file;
+	private final Map<Edge, Edge> edges = new HashMap<Edge, Edge>();
+	private final Map<IPath, Set<Edge>> bySource = new HashMap<IPath, Set<Edge>>();
+	private final Map<IPath, Set<Edge>> byDestination = new HashMap<IPath, Set<Edge>>();
+	private boolean complete;
+	private boolean dirty;
+
+	/**
+	 * Creates an index persisted to the given file. The index is empty and
+	 * incomplete until {@link #load()} is called.
+	 *
+	 * @param file
+	 */
+	public CopyIndex(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Returns the shared index for a project, loading it from the plug-in
+	 * state location on first use.
+	 *
+	 * @param project
+	 * @return
+	 */
+	public static synchronized CopyIndex getIndex(IProject project) {
+		CopyIndex index = indexes.get(project);
+		if (index == null) {
+			index = new CopyIndex(Activator.getDefault().getStateLocation()
+					.append(project.getName() + ".copyindex").toFile());
+			index.load();
+			indexes.put(project, index);
+		}
+		return index;
+	}
+
+	/**
+	 * Returns true if the index is known to describe every copied Function in
+	 * the project.
+	 *
+	 * @return
+	 */
+	public synchronized boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * Marks the index as complete, typically after a full build.
+	 *
+	 * @param complete
+	 */
+	public synchronized void setComplete(boolean complete) {
+		if (this.complete != complete) {
+			this.complete = complete;
+			dirty = true;
+		}
+	}
+
+	/**
+	 * Returns the Functions that were copied from the given source resource.
+	 *
+	 * @param source
+	 * @return
+	 */
+	public synchronized List<Edge> getEdgesFrom(IPath source) {
+		Set<Edge> edges = bySource.get(source);
+		return edges == null ? new ArrayList<Edge>() : new ArrayList<Edge>(
+				edges);
+	}
+
+	/**
+	 * Returns the Functions that were copied into the given destination
+	 * resource.
+	 *
+	 * @param destination
+	 * @return
+	 */
+	public synchronized List<Edge> getEdgesTo(IPath destination) {
+		Set<Edge> edges = byDestination.get(destination);
+		return edges == null ? new ArrayList<Edge>() : new ArrayList<Edge>(
+				edges);
+	}
+
+	/**
+	 * Returns the resources that Functions of the given source resource have
+	 * been copied to.
+	 *
+	 * @param source
+	 * @return
+	 */
+	public synchronized Set<IPath> getDestinations(IPath source) {
+		Set<IPath> result = new LinkedHashSet<IPath>();
+		for (Edge edge : getEdgesFrom(source)) {
+			result.add(edge.getDestination());
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the resources that the given Function of a source resource has
+	 * been copied to.
+	 *
+	 * @param source
+	 * @param function
+	 * @return
+	 */
+	public synchronized Set<IPath> getDestinations(IPath source,
+			String function) {
+		Set<IPath> result = new LinkedHashSet<IPath>();
+		for (Edge edge : getEdgesFrom(source)) {
+			if (edge.getFunction().equals(function)) {
+				result.add(edge.getDestination());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns every resource that is rewritten, directly or through a chain of
+	 * destinations that are themselves sources, when the given resource
+	 * changes. The given resource is not included.
+	 *
+	 * @param source
+	 * @return
+	 */
+	public synchronized Set<IPath> getAffectedResources(IPath source) {
+		Set<IPath> result = new LinkedHashSet<IPath>();
+		LinkedList<IPath> pending = new LinkedList<IPath>();
+		pending.add(source);
+		while (!pending.isEmpty()) {
+			for (IPath destination : getDestinations(pending.removeFirst())) {
+				if (!destination.equals(source) && result.add(destination)) {
+					pending.add(destination);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Records that a Function has been copied from a source to a destination.
+	 *
+	 * @param source
+	 * @param function
+	 * @param destination
+	 * @return the edge
+	 */
+	public synchronized Edge addEdge(IPath source, String function,
+			IPath destination) {
+		Edge edge = new Edge(source, function, destination);
+		Edge existing = edges.get(edge);
+		if (existing != null) {
+			return existing;
+		}
+		edges.put(edge, edge);
+		add(bySource, source, edge);
+		add(byDestination, destination, edge);
+		dirty = true;
+		return edge;
+	}
+
+	/**
+	 * Records that a Function with the given fingerprint has been copied from
+	 * a source to a destination.
+	 *
+	 * @param source
+	 * @param function
+	 * @param destination
+	 * @param fingerprint
+	 */
+	public synchronized void recordCopy(IPath source, String function,
+			IPath destination, String fingerprint) {
+		Edge edge = addEdge(source, function, destination);
+		if (fingerprint == null ? edge.fingerprint != null : !fingerprint
+				.equals(edge.fingerprint)) {
+			edge.fingerprint = fingerprint;
+			dirty = true;
+		}
+	}
+
+	/**
+	 * Records the modification stamp of a destination resource after the
+	 * builder has written it. Every edge into the destination is updated,
+	 * since the builder preserves the other generated Functions when it
+	 * rewrites a destination.
+	 *
+	 * @param destination
+	 * @param stamp
+	 */
+	public synchronized void setDestinationStamp(IPath destination, long stamp) {
+		Set<Edge> into = byDestination.get(destination);
+		if (into != null) {
+			for (Edge edge : into) {
+				if (edge.destinationStamp != stamp) {
+					edge.destinationStamp = stamp;
+					dirty = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns true if the given Function has already been copied to the
+	 * destination with the same fingerprint and the destination has not been
+	 * modified since.
+	 *
+	 * @param source
+	 * @param function
+	 * @param destination
+	 * @param fingerprint
+	 * @param destinationStamp
+	 * @return
+	 */
+	public synchronized boolean isUpToDate(IPath source, String function,
+			IPath destination, String fingerprint, long destinationStamp) {
+		Edge edge = edges.get(new Edge(source, function, destination));
+		return edge != null && fingerprint != null
+				&& fingerprint.equals(edge.fingerprint)
+				&& destinationStamp != IResource.NULL_STAMP
+				&& destinationStamp == edge.destinationStamp;
+	}
+
+	/**
+	 * Replaces everything recorded about a destination resource with the
+	 * given map of generated Function names to the resources they were
+	 * generated from.
+	 *
+	 * @param destination
+	 * @param generated
+	 */
+	public synchronized void setGeneratedFunctions(IPath destination,
+			Map<String, IPath> generated) {
+		Set<Edge> current = new HashSet<Edge>();
+		for (Map.Entry<String, IPath> entry : generated.entrySet()) {
+			current.add(new Edge(entry.getValue(), entry.getKey(), destination));
+		}
+		for (Edge edge : getEdgesTo(destination)) {
+			if (!current.contains(edge)) {
+				removeEdge(edge);
+			}
+		}
+		for (Edge edge : current) {
+			addEdge(edge.getSource(), edge.getFunction(), destination);
+		}
+	}
+
+	/**
+	 * Forgets that a Function has been copied from a source to a destination.
+	 *
+	 * @param source
+	 * @param function
+	 * @param destination
+	 */
+	public synchronized void removeCopy(IPath source, String function,
+			IPath destination) {
+		removeEdge(new Edge(source, function, destination));
+	}
+
+	/**
+	 * Forgets every Function copied from the given source resource.
+	 *
+	 * @param source
+	 */
+	public synchronized void removeSource(IPath source) {
+		for (Edge edge : getEdgesFrom(source)) {
+			removeEdge(edge);
+		}
+	}
+
+	/**
+	 * Forgets every Function copied into the given destination resource.
+	 *
+	 * @param destination
+	 */
+	public synchronized void removeDestination(IPath destination) {
+		for (Edge edge : getEdgesTo(destination)) {
+			removeEdge(edge);
+		}
+	}
+
+	/**
+	 * Forgets everything in the index and marks it as incomplete, typically
+	 * before a full build repopulates it.
+	 */
+	public synchronized void clear() {
+		if (!edges.isEmpty() || complete) {
+			edges.clear();
+			bySource.clear();
+			byDestination.clear();
+			complete = false;
+			dirty = true;
+		}
+	}
+
+	/**
+	 * Loads the index from disk. If the file does not exist or cannot be read
+	 * the index is left empty and incomplete.
+	 */
+	public synchronized void load() {
+		edges.clear();
+		bySource.clear();
+		byDestination.clear();
+		complete = false;
+		dirty = false;
+
+		File base = new AtomicFile(file).getBaseFile();
+		if (!base.isFile()) {
+			return;
+		}
+
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(
+					new FileInputStream(base), "UTF-8"));
+			try {
+				if (!HEADER.equals(reader.readLine())) {
+					return;
+				}
+				String line;
+				while ((line = reader.readLine()) != null) {
+					String[] fields = line.split(SEPARATOR);
+					if (fields.length == 5) {
+						Edge edge = addEdge(new Path(fields[0]), fields[1],
+								new Path(fields[2]));
+						if (fields[3].length() > 0) {
+							edge.fingerprint = fields[3];
+						}
+						edge.destinationStamp = Long.parseLong(fields[4]);
+					}
+				}
+				complete = true;
+				dirty = false;
+			} finally {
+				reader.close();
+			}
+		} catch (NumberFormatException e) {
+			edges.clear();
+			bySource.clear();
+			byDestination.clear();
+			e.printStackTrace();
+		} catch (IOException e) {
+			edges.clear();
+			bySource.clear();
+			byDestination.clear();
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Writes the index to disk if it is complete and has changed since it was
+	 * last loaded or saved. An incomplete index is never written so that it
+	 * cannot be mistaken for a complete one after a restart.
+	 */
+	public synchronized void save() {
+		if (!dirty) {
+			return;
+		}
+
+		AtomicFile atomic = new AtomicFile(file);
+		if (!complete) {
+			atomic.delete();
+			dirty = false;
+			return;
+		}
+
+		FileOutputStream out = null;
+		try {
+			out = atomic.startWrite();
+			BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+					out, "UTF-8"));
+			writer.write(HEADER);
+			writer.newLine();
+			for (Edge edge : edges.keySet()) {
+				writer.write(edge.getSource().toString());
+				writer.write(SEPARATOR);
+				writer.write(edge.getFunction());
+				writer.write(SEPARATOR);
+				writer.write(edge.getDestination().toString());
+				writer.write(SEPARATOR);
+				writer.write(edge.fingerprint == null ? ""
+						: edge.fingerprint);
+				writer.write(SEPARATOR);
+				writer.write(Long.toString(edge.destinationStamp));
+				writer.newLine();
+			}
+			writer.flush();
+			if (atomic.finishWrite(out)) {
+				dirty = false;
+			}
+		} catch (IOException e) {
+			if (out != null) {
+				atomic.failWrite(out);
+			}
+			e.printStackTrace();
+		}
+	}
+
+	private void removeEdge(Edge edge) {
+		if (edges.remove(edge) != null) {
+			remove(bySource, edge.getSource(), edge);
+			remove(byDestination, edge.getDestination(), edge);
+			dirty = true;
+		}
+	}
+
+	private static boolean add(Map<IPath, Set<Edge>> map, IPath key, Edge edge) {
+		Set<Edge> edges = map.get(key);
+		if (edges == null) {
+			edges = new HashSet<Edge>();
+			map.put(key, edges);
+		}
+		return edges.add(edge);
+	}
+
+	private static void remove(Map<IPath, Set<Edge>> map, IPath key, Edge edge) {
+		Set<Edge> edges = map.get(key);
+		if (edges != null) {
+			edges.remove(edge);
+			if (edges.isEmpty()) {
+				map.remove(key);
+			}
+		}
+	}
+}
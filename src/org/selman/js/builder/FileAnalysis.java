@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Daniel Selman}.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Daniel Selman - initial API and implementation and/or initial documentation
+ *******************************************************************************/
+
+package org.selman.js.builder;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.wst.jsdt.core.dom.FunctionDeclaration;
+
+/**
+ * The result of analysing a single file: the Functions it copies elsewhere,
+ * the Functions it holds that were generated from elsewhere and the problems
+ * found with them. An analysis only reads the workspace, so files can be
+ * analysed concurrently; the builder then applies the analyses one at a time.
+ *
+ * @author dselman
+ */
+public class FileAnalysis {
+
+	/**
+	 * A Function tagged with '@copyTo' and one of its destinations.
+	 */
+	public static class Copy {
+		private final IFile destination;
+		private final String function;
+		private final FunctionDeclaration sourceFunction;
+		private final String fingerprint;
+
+		Copy(IFile destination, String function,
+				FunctionDeclaration sourceFunction, String fingerprint) {
+			this.destination = destination;
+			this.function = function;
+			this.sourceFunction = sourceFunction;
+			this.fingerprint = fingerprint;
+		}
+
+		public IFile getDestination() {
+			return destination;
+		}
+
+		public String getFunction() {
+			return function;
+		}
+
+		public FunctionDeclaration getSourceFunction() {
+			return sourceFunction;
+		}
+
+		public String getFingerprint() {
+			return fingerprint;
+		}
+	}
+
+	/**
+	 * A problem to be reported with a marker on the analysed file.
+	 */
+	public static class Problem {
+		private final String message;
+		private final int lineNumber;
+
+		Problem(String message, int lineNumber) {
+			this.message = message;
+			this.lineNumber = lineNumber;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+
+		public int getLineNumber() {
+			return lineNumber;
+		}
+	}
+
+	private final IFile file;
+	private boolean javaScript;
+	private final List<Copy> copies = new ArrayList<Copy>();
+	private final List<Problem> problems = new ArrayList<Problem>();
+	private final Map<String, IPath> generated = new HashMap<String, IPath>();
+
+	public FileAnalysis(IFile file) {
+		this.file = file;
+	}
+
+	/**
+	 * Returns the analysed file.
+	 *
+	 * @return
+	 */
+	public IFile getFile() {
+		return file;
+	}
+
+	/**
+	 * Returns true if the file is a JavaScript file, whose markers and copy
+	 * index entries are owned by the builder.
+	 *
+	 * @return
+	 */
+	public boolean isJavaScript() {
+		return javaScript;
+	}
+
+	void setJavaScript(boolean javaScript) {
+		this.javaScript = javaScript;
+	}
+
+	/**
+	 * Returns the copies requested by '@copyTo' tags in the file.
+	 *
+	 * @return
+	 */
+	public List<Copy> getCopies() {
+		return copies;
+	}
+
+	void addCopy(IFile destination, String function,
+			FunctionDeclaration sourceFunction, String fingerprint) {
+		copies.add(new Copy(destination, function, sourceFunction,
+				fingerprint));
+	}
+
+	/**
+	 * Returns the problems found in the file.
+	 *
+	 * @return
+	 */
+	public List<Problem> getProblems() {
+		return problems;
+	}
+
+	void addProblem(String message, int lineNumber) {
+		problems.add(new Problem(message, lineNumber));
+	}
+
+	/**
+	 * Returns the names of the Functions in the file tagged with
+	 * '@generatedFrom', mapped to the path of their source resource.
+	 *
+	 * @return
+	 */
+	public Map<String, IPath> getGenerated() {
+		return generated;
+	}
+
+	void addGenerated(String function, IPath source) {
+		generated.put(function, source);
+	}
+}
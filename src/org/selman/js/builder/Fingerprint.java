@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Daniel Selman}.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Daniel Selman - initial API and implementation and/or initial documentation
+ *******************************************************************************/
+
+package org.selman.js.builder;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes short content fingerprints used to detect unchanged Functions and
+ * files.
+ *
+ * @author dselman
+ */
+public class Fingerprint {
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private Fingerprint() {
+	}
+
+	/**
+	 * Returns the fingerprint of a String.
+	 *
+	 * @param text
+	 * @return
+	 */
+	public static String of(String text) {
+		try {
+			return of(text.getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Returns the fingerprint of an array of bytes.
+	 *
+	 * @param bytes
+	 * @return
+	 */
+	public static String of(byte[] bytes) {
+		MessageDigest digest = newDigest();
+		digest.update(bytes);
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Returns a new MessageDigest for the fingerprint algorithm.
+	 *
+	 * @return
+	 */
+	public static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Formats a digest as a hexadecimal String.
+	 *
+	 * @param digest
+	 * @return
+	 */
+	public static String toHex(byte[] digest) {
+		char[] chars = new char[digest.length * 2];
+		for (int i = 0; i < digest.length; i++) {
+			chars[i * 2] = HEX[(digest[i] >> 4) & 0xf];
+			chars[i * 2 + 1] = HEX[digest[i] & 0xf];
+		}
+		return new String(chars);
+	}
+}
@@ -11,8 +11,21 @@
 
 package org.selman.js.builder;
 
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.swing.text.BadLocationException;
 
@@ -24,11 +37,17 @@ import org.eclipse.core.resources.IResourceDelta;
 import org.eclipse.core.resources.IResourceDeltaVisitor;
 import org.eclipse.core.resources.IResourceVisitor;
 import org.eclipse.core.resources.IncrementalProjectBuilder;
+import org.eclipse.core.resources.ProjectScope;
 import org.eclipse.core.resources.ResourcesPlugin;
 import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.IPath;
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
+import org.eclipse.core.runtime.Path;
+import org.eclipse.core.runtime.SubMonitor;
+import org.eclipse.core.runtime.preferences.IEclipsePreferences;
 import org.eclipse.jface.preference.IPreferenceStore;
 import org.eclipse.jface.text.Document;
 import org.eclipse.jface.text.IDocument;
@@ -42,14 +61,15 @@ import org.eclipse.wst.jsdt.core.ISourceRange;
 import org.eclipse.wst.jsdt.core.JavaScriptCore;
 import org.eclipse.wst.jsdt.core.dom.AST;
 import org.eclipse.wst.jsdt.core.dom.ASTNode;
-import org.eclipse.wst.jsdt.core.dom.ASTParser;
 import org.eclipse.wst.jsdt.core.dom.FunctionDeclaration;
 import org.eclipse.wst.jsdt.core.dom.JSdoc;
 import org.eclipse.wst.jsdt.core.dom.JavaScriptUnit;
 import org.eclipse.wst.jsdt.core.dom.TagElement;
 import org.eclipse.wst.jsdt.core.dom.TextElement;
 import org.selman.js.builder.preferences.PreferenceConstants;
-import org.selman.scp.Scp;
+import org.selman.js.builder.upload.RemoteTarget;
+import org.selman.js.builder.upload.Upload;
+import org.selman.js.builder.upload.UploadService;
 
 /**
  * A little IncrementalProjectBuilder for JavaScript projects that adds the
@@ -64,7 +84,84 @@ import org.selman.scp.Scp;
 public class JavaScriptBuilder extends IncrementalProjectBuilder {
 	
 	private IPreferenceStore preferenceStore = Activator.getDefault().getPreferenceStore();
-	private Scp scp = new Scp();
+
+	/**
+	 * Parsed ASTs shared by process(), processRemovedResource() and the
+	 * '@generatedFrom' validation.
+	 */
+	private final AstCache astCache = new AstCache(
+			preferenceStore.getInt(PreferenceConstants.AST_CACHE_SIZE));
+
+	/**
+	 * Changes to destination resources, applied at the end of each build.
+	 */
+	private final WritePlan writePlan = new WritePlan();
+
+	/**
+	 * Counts of Function copies requested, copies skipped because the
+	 * destination already held the identical Function, and destination saves
+	 * skipped because nothing changed, for the current build.
+	 */
+	private int copiesPlanned;
+	private int copiesElided;
+	private int savesElided;
+
+	/**
+	 * Modification stamps of the destination resources written by the
+	 * current build, and by the previous build. The deltas caused by our own
+	 * writes arrive in the next build and are ignored if the stamp still
+	 * matches, since the written resources have already been processed.
+	 */
+	private Map<IPath, Long> generatedStamps = new HashMap<IPath, Long>();
+	private Map<IPath, Long> previousGeneratedStamps = new HashMap<IPath, Long>();
+
+	/**
+	 * Files that were to be processed by a build that did not complete, for
+	 * example because it was cancelled. They are processed again by the next
+	 * build.
+	 */
+	private final Set<IPath> pendingFiles = new LinkedHashSet<IPath>();
+
+	/**
+	 * Files to upload to the remote server at the end of the current build.
+	 */
+	private final Set<IFile> pendingUploads = new LinkedHashSet<IFile>();
+
+	/**
+	 * Files removed from the project, mapped to the path they were moved to,
+	 * or to null if they were deleted. They are kept until they have been
+	 * queued to be deleted or renamed on the remote server, since a cancelled
+	 * build does not see their deltas again.
+	 */
+	private final Map<IPath, IPath> pendingRemovals = new LinkedHashMap<IPath, IPath>();
+
+	/**
+	 * Resources removed from the project, mapped to the path they were moved
+	 * to, or to null if they were deleted. The Functions generated from them
+	 * are removed or moved by the write plan, and they are kept until the
+	 * plan has been applied so a build that is cancelled or fails plans the
+	 * same changes again.
+	 */
+	private final Map<IPath, IPath> pendingRemovedSources = new LinkedHashMap<IPath, IPath>();
+
+	/**
+	 * The content of the destination resources written by the current build,
+	 * as saved, so that they are uploaded without being read back from disk.
+	 */
+	private final Map<IFile, byte[]> generatedContents = new HashMap<IFile, byte[]>();
+
+	/**
+	 * The maximum number of times written destinations are reprocessed within
+	 * a single build, which bounds chains and cycles of '@copyTo' tags.
+	 */
+	private static final int MAX_WRITE_PASSES = 8;
+
+	/**
+	 * Resource delta flags that indicate the content of a file may have
+	 * changed. Other changes, such as to our own markers, are ignored.
+	 */
+	private static final int CONTENT_FLAGS = IResourceDelta.CONTENT
+			| IResourceDelta.REPLACED | IResourceDelta.ENCODING;
 
 	private static final String COPY_TO = "@copyTo";
 
@@ -74,6 +171,19 @@ public class JavaScriptBuilder extends IncrementalProjectBuilder {
 	 */
 	private static final String GENERATED_FROM = "@generatedFrom";
 
+	/**
+	 * Skips files that cannot contain either of our JSDoc tags without
+	 * creating a JavaScript model for them.
+	 */
+	private final TagPrefilter prefilter = new TagPrefilter(COPY_TO,
+			GENERATED_FROM);
+
+	/**
+	 * Decides which resources are visited by the current build. Excluded
+	 * folders are pruned.
+	 */
+	private ResourceFilter filter = new ResourceFilter(null, null);
+
 	/**
 	 * The Eclipse identifier for this builder.
 	 */
@@ -89,26 +199,43 @@ public class JavaScriptBuilder extends IncrementalProjectBuilder {
 	 * removed or changed.
 	 */
 	class DeltaVisitor implements IResourceDeltaVisitor {
+		private final Collection<IFile> files;
+
+		/**
+		 * @param files
+		 *            receives the added and changed files to process
+		 */
+		DeltaVisitor(Collection<IFile> files) {
+			this.files = files;
+		}
+
 		public boolean visit(IResourceDelta delta) throws CoreException {
 			IResource resource = delta.getResource();
+			if (!filter.accept(resource)) {
+				return false;
+			}
 			switch (delta.getKind()) {
 			case IResourceDelta.ADDED:
-				try {
-					process(resource);
-				} catch (Exception e) {
-					throw new CoreException(new BuilderStatus(IStatus.ERROR,
-							resource.getFullPath(), "Failed to build.", e));
+				if (resource instanceof IFile && !isGeneratedWrite(resource)) {
+					files.add((IFile) resource);
 				}
 				break;
 			case IResourceDelta.REMOVED:
-				processRemovedResource(delta.getResource().getFullPath());
+				prefilter.invalidate(resource.getFullPath());
+				IPath movedTo = resource instanceof IFile ? getMovedToPath(delta)
+						: null;
+				pendingRemovedSources.put(resource.getFullPath(), movedTo);
+				if (resource instanceof IFile
+						&& preferenceStore
+								.getBoolean(PreferenceConstants.ENABLE_REMOTE_COPY)) {
+					pendingRemovals.put(resource.getFullPath(), movedTo);
+				}
 				break;
 			case IResourceDelta.CHANGED:
-				try {
-					process(resource);
-				} catch (Exception e) {
-					throw new CoreException(new BuilderStatus(IStatus.ERROR,
-							resource.getFullPath(), "Failed to build.", e));
+				if (resource instanceof IFile
+						&& (delta.getFlags() & CONTENT_FLAGS) != 0
+						&& !isGeneratedWrite(resource)) {
+					files.add((IFile) resource);
 				}
 				break;
 			}
@@ -118,14 +245,46 @@ public class JavaScriptBuilder extends IncrementalProjectBuilder {
 	}
 
 	/**
-	 * IResourceVisitor called to process all resources in our project.
+	 * Returns the path a removed file was moved to, if the file stays in this
+	 * project and is still built, so that what was derived from it can simply
+	 * follow it. Otherwise returns null and the file is handled as deleted.
+	 * 
+	 * @param delta
+	 * @return
+	 */
+	private IPath getMovedToPath(IResourceDelta delta) {
+		if ((delta.getFlags() & IResourceDelta.MOVED_TO) == 0) {
+			return null;
+		}
+		IFile destFile = getProject().getWorkspace().getRoot().getFile(
+				delta.getMovedToPath());
+		if (!getProject().equals(destFile.getProject())
+				|| !filter.accept(destFile)) {
+			return null;
+		}
+		return destFile.getFullPath();
+	}
+
+	/**
+	 * IResourceVisitor called to collect all files in our project.
 	 */
 	class ResourceVisitor implements IResourceVisitor {
+		private final Collection<IFile> files;
+
+		/**
+		 * @param files
+		 *            receives the files to process
+		 */
+		ResourceVisitor(Collection<IFile> files) {
+			this.files = files;
+		}
+
 		public boolean visit(IResource resource) {
-			try {
-				process(resource);
-			} catch (Exception e) {
-				throw new IllegalStateException(e);
+			if (!filter.accept(resource)) {
+				return false;
+			}
+			if (resource instanceof IFile) {
+				files.add((IFile) resource);
 			}
 			// return true to continue visiting children.
 			return true;
@@ -155,13 +314,98 @@ public class JavaScriptBuilder extends IncrementalProjectBuilder {
 	}
 
 	/**
-	 * Handles removed resources. This method iterates on all JavaScript files
-	 * in the project and examines their Functions. If any Function is found
-	 * that was generated from the removed resource it is also removed.
+	 * Handles removed resources. The copy index is used to find the
+	 * destination resources that hold Functions generated from the removed
+	 * resource and the removal of those Functions is added to the write plan.
+	 * If the index is incomplete we fall back to scanning every JavaScript
+	 * file in the workspace.
 	 * 
 	 * @param projectRelativePath
 	 */
 	public void processRemovedResource(final IPath projectRelativePath) {
+		processMovedResource(projectRelativePath, null);
+	}
+
+	/**
+	 * Handles resources moved within the project. The Functions generated
+	 * from the moved resource are left in place in their destinations and
+	 * only their '@generatedFrom' tags are changed to the new path, all in
+	 * the same rewrite as any other change to the destination. The moved
+	 * resource is then processed as an added one, and its copies are elided
+	 * since the destinations already hold them. The copy index keeps the
+	 * Functions generated from the resource until the changes are applied.
+	 * 
+	 * @param projectRelativePath
+	 * @param newPath
+	 *            the path the resource was moved to, or null if it was
+	 *            removed
+	 */
+	public void processMovedResource(final IPath projectRelativePath,
+			final IPath newPath) {
+		CopyIndex index = getCopyIndex();
+		if (!index.isComplete()) {
+			scanForRemovedResource(projectRelativePath, newPath);
+		} else {
+			for (CopyIndex.Edge edge : index.getEdgesFrom(projectRelativePath)) {
+				IResource destResource = ResourcesPlugin.getWorkspace()
+						.getRoot().findMember(edge.getDestination());
+				if (destResource instanceof IFile) {
+					planRemoval((IFile) destResource, edge.getFunction(),
+							projectRelativePath, newPath);
+				}
+			}
+		}
+
+		index.removeDestination(projectRelativePath);
+	}
+
+	/**
+	 * Plans the changes to the Functions generated from every resource removed
+	 * from the project that has not been handled by a completed build.
+	 */
+	private void processRemovedSources() {
+		for (Map.Entry<IPath, IPath> entry : pendingRemovedSources.entrySet()) {
+			if (entry.getValue() != null) {
+				processMovedResource(entry.getKey(), entry.getValue());
+			} else {
+				processRemovedResource(entry.getKey());
+			}
+		}
+	}
+
+	/**
+	 * Plans the removal of a Function generated from a removed resource, or
+	 * the change of its '@generatedFrom' tag if the resource was moved.
+	 * 
+	 * @param destFile
+	 * @param function
+	 * @param source
+	 * @param newSource
+	 *            the path the source was moved to, or null if it was removed
+	 */
+	private void planRemoval(IFile destFile, String function, IPath source,
+			IPath newSource) {
+		if (newSource == null) {
+			writePlan.addRemove(destFile, function, source);
+		} else {
+			writePlan.addMove(destFile, function, source, newSource);
+		}
+	}
+
+	/**
+	 * Handles removed resources when the copy index is not available. This
+	 * method iterates on all JavaScript files in the workspace and examines
+	 * their Functions. If any Function is found that was generated from the
+	 * removed resource its removal, or the change of its source if the
+	 * resource was moved, is added to the write plan.
+	 * 
+	 * @param projectRelativePath
+	 * @param newPath
+	 *            the path the resource was moved to, or null if it was
+	 *            removed
+	 */
+	private void scanForRemovedResource(final IPath projectRelativePath,
+			final IPath newPath) {
 
 		IJavaScriptModel model = JavaScriptCore.create(ResourcesPlugin
 				.getWorkspace().getRoot());
@@ -191,27 +435,9 @@ public class JavaScriptBuilder extends IncrementalProjectBuilder {
 											.getText(jsDocRange.getOffset(),
 													jsDocRange.getLength());
 									if (isGenerated(text, projectRelativePath)) {
-										JavaScriptUnit destRoot = createCU(
-												jsUnit, false);
-										destRoot.recordModifications();
-
-										FunctionDeclaration destFunction = findFunction(
-												destRoot.statements(), function);
-
-										if (destFunction != null) {
-											destRoot.statements().remove(
-													destFunction);
-										}
-
-										String newContent;
-										try {
-											newContent = evaluateRewrite(
-													jsUnit, destRoot);
-											jsUnit.getBuffer().setContents(
-													newContent);
-										} catch (Exception e) {
-											e.printStackTrace();
-										}
+										planRemoval((IFile) resource,
+												function.getDisplayName(),
+												projectRelativePath, newPath);
 									}
 								}
 							}
@@ -246,6 +472,9 @@ public class JavaScriptBuilder extends IncrementalProjectBuilder {
 	 */
 	private String getGeneratedFrom(FunctionDeclaration function) {
 		JSdoc jsdoc = function.getJavadoc();
+		if (jsdoc == null) {
+			return null;
+		}
 		List tags = jsdoc.tags();
 
 		for (Object thing : tags) {
@@ -253,7 +482,7 @@ public class JavaScriptBuilder extends IncrementalProjectBuilder {
 				TagElement tag = (TagElement) thing;
 				if (GENERATED_FROM.equals(tag.getTagName())) {
 					if (tag.fragments().size() > 0) {
-						return tag.fragments().get(0).toString();
+						return tag.fragments().get(0).toString().trim();
 					}
 				}
 			}
@@ -262,19 +491,92 @@ public class JavaScriptBuilder extends IncrementalProjectBuilder {
 		return null;
 	}
 
+	/**
+	 * Returns the copy index for this builder's project.
+	 * 
+	 * @return
+	 */
+	CopyIndex getCopyIndex() {
+		return CopyIndex.getIndex(getProject());
+	}
+
+	/**
+	 * Returns a preference for this builder's project. A value set for the
+	 * project, in the project's .settings folder, overrides the workspace
+	 * preference.
+	 * 
+	 * @param key
+	 * @return
+	 */
+	private String getProjectPreference(String key) {
+		IEclipsePreferences node = new ProjectScope(getProject())
+				.getNode(Activator.PLUGIN_ID);
+		return node.get(key, preferenceStore.getString(key));
+	}
+
 	/**
 	 * Called by Eclipse to build a project.
 	 */
 	protected IProject[] build(int kind, Map args, IProgressMonitor monitor)
 			throws CoreException {
-		if (kind == FULL_BUILD) {
-			fullBuild(monitor);
-		} else {
-			IResourceDelta delta = getDelta(getProject());
+		SubMonitor progress = SubMonitor.convert(monitor, "Building "
+				+ getProject().getName(), 100);
+		astCache.setCapacity(preferenceStore
+				.getInt(PreferenceConstants.AST_CACHE_SIZE));
+		filter = new ResourceFilter(
+				getProjectPreference(PreferenceConstants.INCLUDE_PATTERNS),
+				getProjectPreference(PreferenceConstants.EXCLUDE_PATTERNS));
+		copiesPlanned = 0;
+		copiesElided = 0;
+		savesElided = 0;
+		previousGeneratedStamps = generatedStamps;
+		generatedStamps = new HashMap<IPath, Long>();
+		boolean full = kind == FULL_BUILD;
+		try {
+			IResourceDelta delta = full ? null : getDelta(getProject());
+			if (delta != null && !getCopyIndex().isComplete()) {
+				// only a full build makes the index complete, so that it is
+				// saved and incremental builds stop scanning the workspace;
+				// the removals in the delta are still planned
+				delta.accept(new DeltaVisitor(new ArrayList<IFile>()));
+				delta = null;
+			}
 			if (delta == null) {
-				fullBuild(monitor);
+				full = true;
+				fullBuild(progress.newChild(50));
 			} else {
-				incrementalBuild(delta, monitor);
+				incrementalBuild(delta, progress.newChild(50));
+			}
+			applyWritePlanAndProcessWrites(progress.newChild(20));
+			pendingRemovedSources.clear();
+			uploadFiles(progress.newChild(30));
+			pendingFiles.clear();
+		} catch (OperationCanceledException e) {
+			// everything this build touched is redone by the next one
+			pendingFiles.addAll(generatedStamps.keySet());
+			generatedStamps.clear();
+			if (full) {
+				forgetLastBuiltState();
+			}
+			throw e;
+		} finally {
+			writePlan.clear();
+			pendingUploads.clear();
+			generatedContents.clear();
+			Activator.trace("AST cache for " + getProject().getName()
+					+ ": " + astCache.getHits() + " hits, "
+					+ astCache.getMisses() + " misses");
+			astCache.resetCounters();
+			Activator.trace("Prefilter for " + getProject().getName() + ": "
+					+ prefilter.getSkipped() + " files without tags skipped");
+			prefilter.resetCounters();
+			Activator.trace("Copies for " + getProject().getName() + ": "
+					+ copiesPlanned + " requested, " + copiesElided
+					+ " elided, " + savesElided + " destination saves elided");
+			getCopyIndex().save();
+			if (!preferenceStore
+					.getBoolean(PreferenceConstants.AST_CACHE_RETAIN)) {
+				astCache.clear();
 			}
 		}
 		return null;
@@ -287,127 +589,576 @@ public class JavaScriptBuilder extends IncrementalProjectBuilder {
 	 * resource is missing are flagged as in error.
 	 * 
 	 * @param resource
-	 * @throws org.eclipse.jface.text.BadLocationException
-	 * @throws BadLocationException
 	 * @throws CoreException
-	 * @throws MalformedTreeException
 	 */
-	void process(IResource resource) throws MalformedTreeException,
-			CoreException, BadLocationException,
-			org.eclipse.jface.text.BadLocationException {
+	void process(IResource resource, IProgressMonitor monitor)
+			throws CoreException {
 		if (resource instanceof IFile) {
-			if (JavaScriptCore.isJavaScriptLikeFileName(resource.getName())) {
-				IFile file = (IFile) resource;
-				deleteMarkers(file);
-
-				IJavaScriptUnit srcUnit = JavaScriptCore
-						.createCompilationUnitFrom(file);
-				IFunction functions[] = srcUnit.getFunctions();
-				for (IFunction function : functions) {
-					ISourceRange jsDocRange = function.getJSdocRange();
-					if (jsDocRange != null) {
-						function.getJavaScriptUnit().open(null);
-						JavaScriptUnit srcRoot = createCU(srcUnit, false);
-						FunctionDeclaration srcFunction = findFunction(
-								srcRoot.statements(), function);
-
-						String text = function
-								.getJavaScriptUnit()
-								.getBuffer()
-								.getText(jsDocRange.getOffset(),
-										jsDocRange.getLength());
-						String[] destFiles = getCopyTo(text);
-						if (destFiles != null) {
-							for (String destFile : destFiles) {
-								IJavaScriptProject proj = srcUnit
-										.getJavaScriptProject();
-								IResource destResource = ResourcesPlugin
-										.getWorkspace()
-										.getRoot()
-										.findMember(
-												proj.getPath().append(
-														destFile.trim()));
-								if (destResource instanceof IFile) {
-									IJavaScriptUnit destUnit = JavaScriptCore
-											.createCompilationUnitFrom((IFile) destResource);
-
-									JavaScriptUnit destRoot = createCU(
-											destUnit, false);
-									destRoot.recordModifications();
-
-									List statements = destRoot.statements();
-									FunctionDeclaration destFunction = findFunction(
-											destRoot.statements(), function);
-
-									if (destFunction != null) {
-										destRoot.statements().remove(
-												destFunction);
-									}
+			apply(analyse((IFile) resource, monitor));
+		}
+	}
 
-									FunctionDeclaration newFunction = (FunctionDeclaration) ASTNode
-											.copySubtree(destRoot.getAST(),
-													srcFunction);
-									replaceCopyTo(newFunction, function);
-									destRoot.statements().add(newFunction);
-
-									String newContent = evaluateRewrite(
-											destUnit, destRoot);
-									destUnit.getBuffer()
-											.setContents(newContent);
-									destUnit.getBuffer().getOwner()
-											.save(null, true);
-								}
+	/**
+	 * Analyses a file without changing the workspace. This may be called
+	 * concurrently for different files.
+	 * 
+	 * @param file
+	 * @param monitor
+	 * @return
+	 * @throws CoreException
+	 */
+	private FileAnalysis analyse(IFile file, IProgressMonitor monitor)
+			throws CoreException {
+		FileAnalysis analysis = new FileAnalysis(file);
+		if (JavaScriptCore.isJavaScriptLikeFileName(file.getName())) {
+			analysis.setJavaScript(true);
+			if (prefilter.mayContainTags(file)) {
+				analyseFunctions(analysis, monitor);
+			}
+		}
+		return analysis;
+	}
+
+	/**
+	 * Applies the analysis of a file: replaces its markers, plans the copies
+	 * it requests, records its generated Functions in the copy index and
+	 * queues it for upload. Analyses are applied one at a time, in a fixed
+	 * order.
+	 * 
+	 * @param analysis
+	 */
+	private void apply(FileAnalysis analysis) {
+		IFile file = analysis.getFile();
+		if (analysis.isJavaScript()) {
+			deleteMarkers(file);
+			for (FileAnalysis.Problem problem : analysis.getProblems()) {
+				addMarker(file, problem.getMessage(), problem.getLineNumber(),
+						IMarker.SEVERITY_ERROR);
+			}
+
+			CopyIndex index = getCopyIndex();
+			for (FileAnalysis.Copy copy : analysis.getCopies()) {
+				IFile destFile = copy.getDestination();
+				copiesPlanned++;
+				if (index.isUpToDate(file.getFullPath(), copy.getFunction(),
+						destFile.getFullPath(), copy.getFingerprint(),
+						destFile.getModificationStamp())) {
+					copiesElided++;
+				} else {
+					writePlan.addCopy(destFile, file.getFullPath(),
+							copy.getSourceFunction(), copy.getFingerprint());
+				}
+			}
+			index.setGeneratedFunctions(file.getFullPath(),
+					analysis.getGenerated());
+		}
+
+		// the file is sent to the remote server at the end of the build
+		if( preferenceStore.getBoolean( PreferenceConstants.ENABLE_REMOTE_COPY ) ) {
+			pendingUploads.add(file);
+		}
+	}
+
+	/**
+	 * Processes a list of files, reporting progress and checking for
+	 * cancellation between files. The files are analysed concurrently by up
+	 * to the configured number of build threads, but the analyses are applied
+	 * in the order of the list so the result does not depend on the number of
+	 * threads.
+	 * 
+	 * @param files
+	 * @param monitor
+	 * @throws CoreException
+	 */
+	private void processFiles(Collection<IFile> files, IProgressMonitor monitor)
+			throws CoreException {
+		SubMonitor progress = SubMonitor.convert(monitor, files.size());
+		for (IFile file : files) {
+			pendingFiles.add(file.getFullPath());
+		}
+
+		int threads = Math.min(getBuildThreads(), files.size());
+		if (threads <= 1) {
+			for (IFile file : files) {
+				if (progress.isCanceled()) {
+					throw new OperationCanceledException();
+				}
+				progress.subTask(file.getFullPath().toString());
+				try {
+					process(file, progress.newChild(1));
+				} catch (OperationCanceledException e) {
+					throw e;
+				} catch (CoreException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new CoreException(new BuilderStatus(IStatus.ERROR,
+							file.getFullPath(), "Failed to build.", e));
+				}
+			}
+			return;
+		}
+
+		final IProgressMonitor cancelMonitor = progress;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<FileAnalysis>> analyses = new ArrayList<Future<FileAnalysis>>();
+			for (final IFile file : files) {
+				analyses.add(executor.submit(new Callable<FileAnalysis>() {
+					public FileAnalysis call() throws Exception {
+						if (cancelMonitor.isCanceled()) {
+							throw new OperationCanceledException();
+						}
+						return analyse(file, new NullProgressMonitor() {
+							@Override
+							public boolean isCanceled() {
+								return cancelMonitor.isCanceled();
 							}
+						});
+					}
+				}));
+			}
+
+			Iterator<IFile> file = files.iterator();
+			for (Future<FileAnalysis> analysis : analyses) {
+				IPath path = file.next().getFullPath();
+				if (progress.isCanceled()) {
+					throw new OperationCanceledException();
+				}
+				progress.subTask(path.toString());
+				try {
+					apply(analysis.get());
+				} catch (InterruptedException e) {
+					throw new OperationCanceledException();
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof OperationCanceledException) {
+						throw (OperationCanceledException) cause;
+					}
+					if (cause instanceof CoreException) {
+						throw (CoreException) cause;
+					}
+					throw new CoreException(new BuilderStatus(IStatus.ERROR,
+							path, "Failed to build.", cause));
+				}
+				progress.worked(1);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Returns the number of threads used to analyse files.
+	 * 
+	 * @return
+	 */
+	private int getBuildThreads() {
+		int threads = preferenceStore.getInt(PreferenceConstants.BUILD_THREADS);
+		if (threads <= 0) {
+			threads = Runtime.getRuntime().availableProcessors();
+		}
+		return threads;
+	}
+
+	/**
+	 * Hands the files collected during the build to the upload service, which
+	 * sends them to every remote server in the background, along with the
+	 * files removed or moved, which are deleted or renamed there. This only
+	 * blocks if the upload queue is full.
+	 * 
+	 * @param monitor
+	 */
+	private void uploadFiles(IProgressMonitor monitor) {
+		SubMonitor progress = SubMonitor.convert(monitor,
+				pendingRemovals.size() + pendingUploads.size());
+		List<RemoteTarget> targets = RemoteTarget.parse(
+				preferenceStore.getString(PreferenceConstants.REMOTE_PATH),
+				preferenceStore.getString(PreferenceConstants.PRIVATE_KEY));
+		UploadService service = UploadService.getDefault();
+		// removals go first, so a moved file is renamed rather than sent
+		for (Iterator<Map.Entry<IPath, IPath>> i = pendingRemovals.entrySet()
+				.iterator(); i.hasNext();) {
+			Map.Entry<IPath, IPath> removal = i.next();
+			String remotePath = removal.getKey().makeRelative().toString();
+			for (RemoteTarget target : targets) {
+				if (removal.getValue() == null) {
+					service.delete(target, remotePath);
+				} else {
+					service.rename(target, remotePath, removal.getValue()
+							.makeRelative().toString());
+				}
+			}
+			i.remove();
+			progress.worked(1);
+		}
+		List<Upload> uploads = new ArrayList<Upload>();
+		for (Iterator<IFile> i = pendingUploads.iterator(); i.hasNext();) {
+			if (progress.isCanceled()) {
+				throw new OperationCanceledException();
+			}
+			IFile file = i.next();
+			progress.subTask("Queueing " + file.getFullPath());
+			byte[] content = generatedContents.get(file);
+			Long stamp = generatedStamps.get(file.getFullPath());
+			if (content != null
+					&& (stamp == null || stamp.longValue() != file
+							.getModificationStamp())) {
+				// changed since this build wrote it, send what is on disk
+				content = null;
+			}
+			for (RemoteTarget target : targets) {
+				uploads.add(new Upload(target, file.getLocation().toFile(),
+						file.getFullPath().makeRelative().toString(), content));
+			}
+			i.remove();
+			progress.worked(1);
+		}
+		// queued together, so the journal is synced once for the build
+		service.enqueueAll(uploads, progress);
+	}
+
+	/**
+	 * Determines if a resource was written by the previous build and has not
+	 * been modified since, in which case it has already been processed.
+	 * 
+	 * @param resource
+	 * @return
+	 */
+	private boolean isGeneratedWrite(IResource resource) {
+		Long stamp = previousGeneratedStamps.remove(resource.getFullPath());
+		return stamp != null
+				&& stamp.longValue() == resource.getModificationStamp();
+	}
+
+	/**
+	 * Analyses the Functions of a file that may contain our JSDoc tags. Any
+	 * Function tagged with '@copyTo' is recorded as a copy to its destination
+	 * resources and any Function with '@generatedFrom' whose source is
+	 * missing is recorded as a problem.
+	 * 
+	 * @param analysis
+	 * @param monitor
+	 * @throws CoreException
+	 */
+	private void analyseFunctions(FileAnalysis analysis,
+			IProgressMonitor monitor) throws CoreException {
+		IFile file = analysis.getFile();
+		IJavaScriptUnit srcUnit = JavaScriptCore
+				.createCompilationUnitFrom(file);
+		IFunction functions[] = srcUnit.getFunctions();
+		for (IFunction function : functions) {
+			if (monitor.isCanceled()) {
+				throw new OperationCanceledException();
+			}
+			ISourceRange jsDocRange = function.getJSdocRange();
+			if (jsDocRange != null) {
+				function.getJavaScriptUnit().open(null);
+				JavaScriptUnit srcRoot = astCache.get(srcUnit);
+				FunctionDeclaration srcFunction = findFunction(
+						srcRoot.statements(), function);
+
+				String text = function
+						.getJavaScriptUnit()
+						.getBuffer()
+						.getText(jsDocRange.getOffset(),
+								jsDocRange.getLength());
+				String[] destFiles = getCopyTo(text);
+				if (destFiles != null) {
+					String fingerprint = getGeneratedFingerprint(
+							srcFunction, file.getFullPath());
+					for (String destFile : destFiles) {
+						IJavaScriptProject proj = srcUnit
+								.getJavaScriptProject();
+						IResource destResource = ResourcesPlugin
+								.getWorkspace()
+								.getRoot()
+								.findMember(
+										proj.getPath().append(
+												destFile.trim()));
+						if (destResource instanceof IFile) {
+							analysis.addCopy((IFile) destResource,
+									function.getDisplayName(), srcFunction,
+									fingerprint);
 						}
+					}
+				}
 
-						// create error markers on Functions that no longer have
-						// a source
-						String generatedFrom = getGeneratedFrom(srcFunction);
-						if (generatedFrom != null) {
-							IResource res = ResourcesPlugin.getWorkspace()
-									.getRoot().findMember(generatedFrom.trim());
-							if (res == null) {
-								addMarker(
-										(IFile) resource,
-										"Cannot find resource " + generatedFrom,
-										function.getJSdocRange().getOffset()
-												+ function.getJSdocRange()
-														.getLength(),
-										IMarker.SEVERITY_ERROR);
-							} else {
-								if (res instanceof IFile) {
-									IJavaScriptUnit refUnit = JavaScriptCore
-											.createCompilationUnitFrom((IFile) res);
-									if (refUnit.findFunctions(function) == null) {
-										addMarker(
-												(IFile) resource,
-												"Cannot find source function "
-														+ generatedFrom,
-												function.getJSdocRange()
-														.getOffset()
-														+ function
-																.getJSdocRange()
-																.getLength(),
-												IMarker.SEVERITY_ERROR);
-									}
-								}
+				// create error markers on Functions that no longer have
+				// a source
+				String generatedFrom = getGeneratedFrom(srcFunction);
+				if (generatedFrom != null) {
+					analysis.addGenerated(function.getDisplayName(),
+							new Path(generatedFrom));
+					int line = jsDocRange.getOffset() + jsDocRange.getLength();
+					IResource res = ResourcesPlugin.getWorkspace()
+							.getRoot().findMember(generatedFrom.trim());
+					if (res == null) {
+						analysis.addProblem("Cannot find resource "
+								+ generatedFrom, line);
+					} else {
+						if (res instanceof IFile) {
+							IJavaScriptUnit refUnit = JavaScriptCore
+									.createCompilationUnitFrom((IFile) res);
+							JavaScriptUnit refRoot = astCache
+									.get(refUnit);
+							if (findFunction(refRoot.statements(),
+									function) == null) {
+								analysis.addProblem(
+										"Cannot find source function "
+												+ generatedFrom, line);
 							}
 						}
 					}
 				}
 			}
-			
-			// scp the file to the remote server
-			// note that at the moment the directory *must* exist
-			if( preferenceStore.getBoolean( PreferenceConstants.ENABLE_REMOTE_COPY ) ) {
-				scp.setTodir( preferenceStore.getString(PreferenceConstants.REMOTE_PATH) + resource.getFullPath().removeLastSegments(1) );
-				scp.setKeyfile( preferenceStore.getString(PreferenceConstants.PRIVATE_KEY) );
-				scp.setFile( resource.getLocation().toString() );
-				scp.setTrust(true);
-				scp.execute();
+		}
+	}
+
+	/**
+	 * Applies the write plan and then processes the destinations that were
+	 * written within this build, rather than waiting for the resource deltas
+	 * caused by the writes to trigger another build. Processing a destination
+	 * may plan further writes (chained '@copyTo' tags) so this repeats until
+	 * nothing more is written.
+	 * 
+	 * @param monitor
+	 * @throws CoreException
+	 */
+	private void applyWritePlanAndProcessWrites(IProgressMonitor monitor)
+			throws CoreException {
+		SubMonitor progress = SubMonitor.convert(monitor, 2 * MAX_WRITE_PASSES);
+		progress.setTaskName("Copying functions");
+		List<IFile> written = applyWritePlan(progress.newChild(1));
+		for (int pass = 1; !written.isEmpty(); pass++) {
+			progress.setTaskName("Validating generated functions");
+			processFiles(written, progress.newChild(1));
+			if (pass == MAX_WRITE_PASSES) {
+				reportDroppedWrites();
+				writePlan.clear();
+				break;
+			}
+			progress.setTaskName("Copying functions");
+			written = applyWritePlan(progress.newChild(1));
+		}
+	}
+
+	/**
+	 * Flags the changes still planned once the destinations have been
+	 * reprocessed {@value #MAX_WRITE_PASSES} times, which are dropped. They
+	 * are usually a cycle of '@copyTo' tags that never settles.
+	 */
+	private void reportDroppedWrites() {
+		for (IFile destFile : writePlan.getDestinations()) {
+			for (WritePlan.Operation operation : writePlan
+					.getOperations(destFile)) {
+				Activator.trace("Dropped change to " + operation.getFunction()
+						+ " in " + destFile.getFullPath() + " from "
+						+ operation.getSource() + " after " + MAX_WRITE_PASSES
+						+ " passes");
+				addMarker(destFile, "Function " + operation.getFunction()
+						+ " was not updated from " + operation.getSource()
+						+ ", its '@copyTo' tags form a cycle that never settles",
+						-1, IMarker.SEVERITY_ERROR);
 			}
-			
-		} // file
+		}
+	}
+
+	/**
+	 * Applies the changes planned during the build. Each destination resource
+	 * is parsed once, all of its changes are applied in a single rewrite and
+	 * it is saved once.
+	 * 
+	 * @param monitor
+	 * @return the destination resources that were written
+	 * @throws CoreException
+	 */
+	private List<IFile> applyWritePlan(IProgressMonitor monitor)
+			throws CoreException {
+		List<IFile> written = new ArrayList<IFile>();
+		CoreException failure = null;
+		List<IFile> destinations = writePlan.getDestinations();
+		SubMonitor progress = SubMonitor.convert(monitor, destinations.size());
+		for (IFile destFile : destinations) {
+			if (progress.isCanceled()) {
+				throw new OperationCanceledException();
+			}
+			progress.subTask(destFile.getFullPath().toString());
+			progress.worked(1);
+			try {
+				if (applyWritePlan(destFile, writePlan.getOperations(destFile))) {
+					generatedStamps.put(destFile.getFullPath(),
+							destFile.getModificationStamp());
+					written.add(destFile);
+				}
+			} catch (Exception e) {
+				if (failure == null) {
+					failure = new CoreException(new BuilderStatus(
+							IStatus.ERROR, destFile.getFullPath(),
+							"Failed to update generated functions.", e));
+				}
+			}
+		}
+		writePlan.clear();
+		if (failure != null) {
+			throw failure;
+		}
+		return written;
+	}
+
+	/**
+	 * Applies the planned changes to a single destination resource.
+	 * 
+	 * @param destFile
+	 * @param operations
+	 * @return true if the destination was written
+	 * @throws CoreException
+	 * @throws MalformedTreeException
+	 * @throws BadLocationException
+	 * @throws org.eclipse.jface.text.BadLocationException
+	 */
+	private boolean applyWritePlan(IFile destFile,
+			List<WritePlan.Operation> operations) throws CoreException,
+			MalformedTreeException, BadLocationException,
+			org.eclipse.jface.text.BadLocationException {
+		IJavaScriptUnit destUnit = JavaScriptCore
+				.createCompilationUnitFrom(destFile);
+		JavaScriptUnit destRoot = astCache.checkout(destUnit);
+		destRoot.recordModifications();
+
+		boolean modified = false;
+		for (WritePlan.Operation operation : operations) {
+			FunctionDeclaration destFunction = findFunction(
+					destRoot.statements(), operation.getFunction());
+			if (operation.isCopy()) {
+				if (destFunction != null) {
+					if (operation.getFingerprint().equals(
+							getFunctionFingerprint(destFunction))) {
+						// the destination already holds this exact Function
+						copiesElided++;
+						continue;
+					}
+					destRoot.statements().remove(destFunction);
+				}
+
+				FunctionDeclaration newFunction = (FunctionDeclaration) ASTNode
+						.copySubtree(destRoot.getAST(),
+								operation.getSourceFunction());
+				replaceCopyTo(newFunction, operation.getSource());
+				destRoot.statements().add(newFunction);
+				modified = true;
+			} else if (destFunction != null
+					&& operation.getSource().toString()
+							.equals(getGeneratedFrom(destFunction))) {
+				if (operation.isMove()) {
+					// keep the Function where it is, only its tag changes
+					replaceGeneratedFrom(destFunction, operation.getSource(),
+							operation.getNewSource());
+				} else {
+					destRoot.statements().remove(destFunction);
+				}
+				modified = true;
+			}
+		}
+
+		if (modified) {
+			String newContent = evaluateRewrite(destUnit, destRoot);
+			destUnit.getBuffer().setContents(newContent);
+			destUnit.getBuffer().getOwner().save(null, true);
+			try {
+				generatedContents.put(destFile,
+						newContent.getBytes(destFile.getCharset()));
+			} catch (UnsupportedEncodingException e) {
+				// the upload reads the file instead
+			}
+		} else {
+			savesElided++;
+		}
+
+		CopyIndex index = getCopyIndex();
+		for (WritePlan.Operation operation : operations) {
+			if (operation.isCopy()) {
+				index.recordCopy(operation.getSource(),
+						operation.getFunction(), destFile.getFullPath(),
+						operation.getFingerprint());
+				continue;
+			}
+			index.removeCopy(operation.getSource(), operation.getFunction(),
+					destFile.getFullPath());
+			if (operation.isMove()) {
+				FunctionDeclaration destFunction = findFunction(
+						destRoot.statements(), operation.getFunction());
+				if (destFunction != null
+						&& operation.getNewSource().toString()
+								.equals(getGeneratedFrom(destFunction))) {
+					index.recordCopy(operation.getNewSource(),
+							operation.getFunction(), destFile.getFullPath(),
+							getFunctionFingerprint(destFunction));
+				}
+			}
+		}
+		index.setDestinationStamp(destFile.getFullPath(),
+				destFile.getModificationStamp());
+		return modified;
+	}
+
+	/**
+	 * Returns the fingerprint of a Function as it will appear once copied to a
+	 * destination, that is, the normalized source of the Function after its
+	 * '@copyTo' tag has been replaced.
+	 * 
+	 * @param srcFunction
+	 * @param source
+	 * @return
+	 */
+	private String getGeneratedFingerprint(FunctionDeclaration srcFunction,
+			IPath source) {
+		FunctionDeclaration newFunction = (FunctionDeclaration) ASTNode
+				.copySubtree(AST.newAST(AST.JLS2), srcFunction);
+		replaceCopyTo(newFunction, source);
+		trimGeneratedFrom(newFunction);
+		return Fingerprint.of(newFunction.toString());
+	}
+
+	/**
+	 * Returns the fingerprint of a Function in a destination, normalized in
+	 * the same way as {@link #getGeneratedFingerprint(FunctionDeclaration, IPath)}
+	 * so an unchanged copy read back from disk has the same fingerprint.
+	 * 
+	 * @param function
+	 * @return
+	 */
+	private String getFunctionFingerprint(FunctionDeclaration function) {
+		FunctionDeclaration copy = (FunctionDeclaration) ASTNode.copySubtree(
+				AST.newAST(AST.JLS2), function);
+		trimGeneratedFrom(copy);
+		return Fingerprint.of(copy.toString());
+	}
+
+	/**
+	 * Removes the whitespace around the path in the '@generatedFrom' tag of a
+	 * Function. A tag parsed from a file keeps the whitespace that separates
+	 * it from the path, one created by replaceCopyTo() has none.
+	 * 
+	 * @param function
+	 */
+	private void trimGeneratedFrom(FunctionDeclaration function) {
+		JSdoc jsdoc = function.getJavadoc();
+		if (jsdoc == null) {
+			return;
+		}
+		List<?> tags = jsdoc.tags();
+
+		for (Object thing : tags) {
+			if (thing instanceof TagElement) {
+				TagElement tag = (TagElement) thing;
+				if (GENERATED_FROM.equals(tag.getTagName())
+						&& tag.fragments().size() > 0
+						&& tag.fragments().get(0) instanceof TextElement) {
+					TextElement text = (TextElement) tag.fragments().get(0);
+					text.setText(text.getText().trim());
+				}
+			}
+		}
 	}
 
 	/**
@@ -416,9 +1167,9 @@ public class JavaScriptBuilder extends IncrementalProjectBuilder {
 	 * resource.
 	 * 
 	 * @param newFunction
-	 * @param src
+	 * @param source
 	 */
-	private void replaceCopyTo(FunctionDeclaration newFunction, IFunction src) {
+	private void replaceCopyTo(FunctionDeclaration newFunction, IPath source) {
 		JSdoc jsdoc = newFunction.getJavadoc();
 		List tags = jsdoc.tags();
 
@@ -429,13 +1180,40 @@ public class JavaScriptBuilder extends IncrementalProjectBuilder {
 					tag.setTagName(GENERATED_FROM);
 					tag.fragments().clear();
 					TextElement text = newFunction.getAST().newTextElement();
-					text.setText(src.getJavaScriptUnit().getPath().toString());
+					text.setText(source.toString());
 					tag.fragments().add(text);
 				}
 			}
 		}
 	}
 
+	/**
+	 * After the source of a generated Function has moved we change the path
+	 * in its '@generatedFrom' tag, keeping the rest of the tag as it is.
+	 * 
+	 * @param function
+	 * @param source
+	 * @param newSource
+	 */
+	private void replaceGeneratedFrom(FunctionDeclaration function,
+			IPath source, IPath newSource) {
+		JSdoc jsdoc = function.getJavadoc();
+		List<?> tags = jsdoc.tags();
+
+		for (Object thing : tags) {
+			if (thing instanceof TagElement) {
+				TagElement tag = (TagElement) thing;
+				if (GENERATED_FROM.equals(tag.getTagName())
+						&& tag.fragments().size() > 0
+						&& tag.fragments().get(0) instanceof TextElement) {
+					TextElement text = (TextElement) tag.fragments().get(0);
+					text.setText(text.getText().replace(source.toString(),
+							newSource.toString()));
+				}
+			}
+		}
+	}
+
 	/**
 	 * Finds a FunctionDeclaration in a list with a given name
 	 * 
@@ -444,10 +1222,22 @@ public class JavaScriptBuilder extends IncrementalProjectBuilder {
 	 * @return
 	 */
 	private FunctionDeclaration findFunction(List statements, IFunction function) {
+		return findFunction(statements, function.getDisplayName());
+	}
+
+	/**
+	 * Finds a FunctionDeclaration in a list with a given name
+	 * 
+	 * @param statements
+	 * @param name
+	 * @return
+	 */
+	private FunctionDeclaration findFunction(List statements, String name) {
 		for (Object thing : statements) {
 			if (thing instanceof FunctionDeclaration) {
 				FunctionDeclaration that = (FunctionDeclaration) thing;
-				if (function.getDisplayName().equals(that.getName().toString())) {
+				if (that.getName() != null
+						&& name.equals(that.getName().toString())) {
 					return that;
 				}
 			}
@@ -456,28 +1246,6 @@ public class JavaScriptBuilder extends IncrementalProjectBuilder {
 		return null;
 	}
 
-	/**
-	 * Creates a JavaScriptUnit so we can access the AST for a IJavaScriptUnit.
-	 * 
-	 * @param unit
-	 * @param resolveBindings
-	 * @return
-	 */
-	private JavaScriptUnit createCU(IJavaScriptUnit unit,
-			boolean resolveBindings) {
-
-		try {
-			ASTParser c = ASTParser.newParser(AST.JLS2);
-			c.setSource(unit);
-			c.setResolveBindings(resolveBindings);
-			ASTNode result = c.createAST(null);
-			return (JavaScriptUnit) result;
-		} catch (IllegalStateException e) {
-			// convert ASTParser's complaints into old form
-			throw new IllegalArgumentException();
-		}
-	}
-
 	/**
 	 * Applies AST changes
 	 * 
@@ -563,10 +1331,22 @@ public class JavaScriptBuilder extends IncrementalProjectBuilder {
 	 */
 	protected void fullBuild(final IProgressMonitor monitor)
 			throws CoreException {
+		SubMonitor progress = SubMonitor.convert(monitor, 10);
+		progress.setTaskName("Scanning " + getProject().getName());
+		List<IFile> files = new ArrayList<IFile>();
 		try {
-			getProject().accept(new ResourceVisitor());
+			// removals left over from a failed build, or in the delta that
+			// was replaced by this build, are planned before the index is
+			// cleared
+			processRemovedSources();
+			getCopyIndex().clear();
+			getProject().accept(new ResourceVisitor(files));
 		} catch (CoreException e) {
 		}
+		progress.worked(1);
+		pendingFiles.clear();
+		processFiles(files, progress.newChild(9));
+		getCopyIndex().setComplete(true);
 	}
 
 	/**
@@ -578,7 +1358,20 @@ public class JavaScriptBuilder extends IncrementalProjectBuilder {
 	 */
 	protected void incrementalBuild(IResourceDelta delta,
 			IProgressMonitor monitor) throws CoreException {
-		// the visitor does the work.
-		delta.accept(new DeltaVisitor());
+		SubMonitor progress = SubMonitor.convert(monitor, 10);
+		progress.setTaskName("Scanning " + getProject().getName());
+		Set<IFile> files = new LinkedHashSet<IFile>();
+		// files left over from a cancelled build go first
+		for (IPath path : pendingFiles) {
+			IResource resource = getProject().getWorkspace().getRoot()
+					.findMember(path);
+			if (resource instanceof IFile) {
+				files.add((IFile) resource);
+			}
+		}
+		delta.accept(new DeltaVisitor(files));
+		processRemovedSources();
+		progress.worked(1);
+		processFiles(files, progress.newChild(9));
 	}
 }
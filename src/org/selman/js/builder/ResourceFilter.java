@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Daniel Selman}.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Daniel Selman - initial API and implementation and/or initial documentation
+ *******************************************************************************/
+
+package org.selman.js.builder;
+
+import java.util.regex.Pattern;
+
+import org.eclipse.core.resources.IResource;
+
+/**
+ * Decides which resources of a project the builder visits, using comma
+ * separated lists of include and exclude glob patterns matched against
+ * project relative paths.
+ * <ul>
+ * <li><code>*</code> matches any characters within a path segment</li>
+ * <li><code>**</code> matches any number of path segments</li>
+ * <li><code>?</code> matches a single character within a path segment</li>
+ * </ul>
+ * A pattern without a '/' matches a resource of that name in any folder, so
+ * <code>node_modules</code> excludes every node_modules folder of the project.
+ * Excluded folders are pruned along with everything below them. Include
+ * patterns only apply to files; an empty include list includes every file.
+ *
+ * @author dselman
+ */
+public class ResourceFilter {
+
+	private final Pattern includes;
+	private final Pattern excludes;
+
+	/**
+	 * @param includes
+	 *            comma separated include patterns, may be empty
+	 * @param excludes
+	 *            comma separated exclude patterns, may be empty
+	 */
+	public ResourceFilter(String includes, String excludes) {
+		this.includes = compile(includes);
+		this.excludes = compile(excludes);
+	}
+
+	/**
+	 * Returns true if the builder should visit a resource. For a folder, false
+	 * means that nothing below the folder is visited either.
+	 *
+	 * @param resource
+	 * @return
+	 */
+	public boolean accept(IResource resource) {
+		if (resource.getType() == IResource.PROJECT
+				|| resource.getType() == IResource.ROOT) {
+			return true;
+		}
+
+		String path = resource.getProjectRelativePath().toString();
+		if (excludes != null && excludes.matcher(path).matches()) {
+			return false;
+		}
+		if (resource.getType() == IResource.FILE && includes != null) {
+			return includes.matcher(path).matches();
+		}
+		return true;
+	}
+
+	/**
+	 * Compiles a comma separated list of glob patterns into a single regular
+	 * expression, or returns null if the list is empty.
+	 *
+	 * @param globs
+	 * @return
+	 */
+	static Pattern compile(String globs) {
+		if (globs == null) {
+			return null;
+		}
+
+		StringBuilder regex = new StringBuilder();
+		for (String glob : globs.split(",")) {
+			glob = glob.trim();
+			while (glob.startsWith("/")) {
+				glob = glob.substring(1);
+			}
+			while (glob.endsWith("/")) {
+				glob = glob.substring(0, glob.length() - 1);
+			}
+			if (glob.length() == 0) {
+				continue;
+			}
+
+			if (regex.length() > 0) {
+				regex.append('|');
+			}
+			regex.append("(?:");
+			if (glob.indexOf('/') < 0) {
+				// a bare name matches in any folder
+				regex.append("(?:.*/)?");
+			}
+			appendGlob(regex, glob);
+			regex.append(')');
+		}
+
+		return regex.length() == 0 ? null : Pattern.compile(regex.toString());
+	}
+
+	private static void appendGlob(StringBuilder regex, String glob) {
+		int n = 0;
+		while (n < glob.length()) {
+			char c = glob.charAt(n);
+			if (c == '*') {
+				if (n + 1 < glob.length() && glob.charAt(n + 1) == '*') {
+					if (n + 2 < glob.length() && glob.charAt(n + 2) == '/') {
+						regex.append("(?:.*/)?");
+						n += 3;
+					} else {
+						regex.append(".*");
+						n += 2;
+					}
+					continue;
+				}
+				regex.append("[^/]*");
+			} else if (c == '?') {
+				regex.append("[^/]");
+			} else if (Character.isLetterOrDigit(c) || c == '/') {
+				regex.append(c);
+			} else {
+				regex.append('\\').append(c);
+			}
+			n++;
+		}
+	}
+}
@@ -0,0 +1,217 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Daniel Selman}.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Daniel Selman - initial API and implementation and/or initial documentation
+ *******************************************************************************/
+
+package org.selman.js.builder;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IPath;
+
+/**
+ * A cheap test, run on the raw bytes of a file, for whether the file could
+ * contain any of the JSDoc tags the builder acts on. Files that cannot contain
+ * a tag do not need a JavaScript model or an AST. Results are cached per file
+ * until its modification stamp changes.
+ * <p>
+ * The test is conservative: it answers true for any file it cannot scan
+ * reliably, such as files in a character set that does not encode the tags
+ * as ASCII.
+ * <p>
+ * Every file is streamed through a small buffer. Files are never memory
+ * mapped, since on Windows a mapped file stays locked until the mapping is
+ * garbage collected, and the builder may save the same file later in the
+ * build.
+ *
+ * @author dselman
+ */
+public class TagPrefilter {
+
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	private static class Result {
+		final long stamp;
+		final boolean mayContainTags;
+
+		Result(long stamp, boolean mayContainTags) {
+			this.stamp = stamp;
+			this.mayContainTags = mayContainTags;
+		}
+	}
+
+	private final String[] tags;
+	private final byte[][] markers;
+	private final int overlap;
+	private final Map<IPath, Result> results = new HashMap<IPath, Result>();
+	private int skipped;
+
+	/**
+	 * Creates a prefilter for the given tags, which must be ASCII.
+	 *
+	 * @param tags
+	 */
+	public TagPrefilter(String... tags) {
+		this.tags = tags;
+		markers = new byte[tags.length][];
+		int longest = 0;
+		for (int n = 0; n < tags.length; n++) {
+			markers[n] = toAscii(tags[n]);
+			longest = Math.max(longest, markers[n].length);
+		}
+		overlap = longest - 1;
+	}
+
+	/**
+	 * Returns false if the file definitely contains none of the tags, true if
+	 * it contains at least one of them or could not be scanned.
+	 *
+	 * @param file
+	 * @return
+	 */
+	public boolean mayContainTags(IFile file) {
+		long stamp = file.getModificationStamp();
+		synchronized (this) {
+			Result result = results.get(file.getFullPath());
+			if (result != null && result.stamp == stamp) {
+				if (!result.mayContainTags) {
+					skipped++;
+				}
+				return result.mayContainTags;
+			}
+		}
+
+		boolean mayContainTags = scan(file);
+		synchronized (this) {
+			results.put(file.getFullPath(), new Result(stamp, mayContainTags));
+			if (!mayContainTags) {
+				skipped++;
+			}
+		}
+		return mayContainTags;
+	}
+
+	/**
+	 * Forgets the cached result for a file.
+	 *
+	 * @param path
+	 */
+	public synchronized void invalidate(IPath path) {
+		results.remove(path);
+	}
+
+	/**
+	 * Returns the number of files reported as containing no tags since the
+	 * counter was last reset.
+	 *
+	 * @return
+	 */
+	public synchronized int getSkipped() {
+		return skipped;
+	}
+
+	/**
+	 * Resets the skipped file counter.
+	 */
+	public synchronized void resetCounters() {
+		skipped = 0;
+	}
+
+	private boolean scan(IFile file) {
+		try {
+			if (!isAsciiCompatible(file.getCharset())) {
+				return true;
+			}
+
+			IPath location = file.getLocation();
+			if (location != null) {
+				return scanStream(new FileInputStream(location.toFile()));
+			}
+			return scanStream(file.getContents(true));
+		} catch (CoreException e) {
+			return true;
+		} catch (IOException e) {
+			return true;
+		}
+	}
+
+	private boolean scanStream(InputStream in) throws IOException {
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE + overlap];
+			int carry = 0;
+			while (true) {
+				int read = in.read(buffer, carry, BUFFER_SIZE);
+				if (read <= 0) {
+					return false;
+				}
+				int length = carry + read;
+				for (int n = 0; n < length; n++) {
+					if (buffer[n] == '@' && matchesAt(buffer, length, n)) {
+						return true;
+					}
+				}
+				carry = Math.min(overlap, length);
+				System.arraycopy(buffer, length - carry, buffer, 0, carry);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private boolean matchesAt(byte[] buffer, int length, int offset) {
+		for (byte[] marker : markers) {
+			if (offset + marker.length <= length) {
+				int n = 1;
+				while (n < marker.length && buffer[offset + n] == marker[n]) {
+					n++;
+				}
+				if (n == marker.length) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns true if the tags are encoded as the same bytes in the given
+	 * character set as in ASCII.
+	 *
+	 * @param charset
+	 * @return
+	 */
+	private boolean isAsciiCompatible(String charset) {
+		try {
+			for (int n = 0; n < tags.length; n++) {
+				if (!Arrays.equals(markers[n], tags[n].getBytes(charset))) {
+					return false;
+				}
+			}
+			return true;
+		} catch (UnsupportedEncodingException e) {
+			return false;
+		}
+	}
+
+	private static byte[] toAscii(String tag) {
+		try {
+			return tag.getBytes("US-ASCII");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
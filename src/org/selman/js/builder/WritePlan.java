@@ -0,0 +1,226 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Daniel Selman}.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Daniel Selman - initial API and implementation and/or initial documentation
+ *******************************************************************************/
+
+package org.selman.js.builder;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.wst.jsdt.core.dom.FunctionDeclaration;
+
+/**
+ * Accumulates, for the duration of a build, every change the builder wants to
+ * make to each destination resource. At the end of the build each destination
+ * is parsed once, all of its changes are applied as a single rewrite and it
+ * is saved once.
+ *
+ * @author dselman
+ */
+public class WritePlan {
+
+	/**
+	 * A single change to a destination resource.
+	 */
+	public static class Operation {
+		private final boolean copy;
+		private final String function;
+		private final IPath source;
+		private final IPath newSource;
+		private final FunctionDeclaration sourceFunction;
+		private final String fingerprint;
+
+		private Operation(boolean copy, String function, IPath source,
+				IPath newSource, FunctionDeclaration sourceFunction,
+				String fingerprint) {
+			this.copy = copy;
+			this.function = function;
+			this.source = source;
+			this.newSource = newSource;
+			this.sourceFunction = sourceFunction;
+			this.fingerprint = fingerprint;
+		}
+
+		/**
+		 * Returns true if the Function is copied into the destination, false
+		 * if it is removed from it or its source has moved.
+		 *
+		 * @return
+		 */
+		public boolean isCopy() {
+			return copy;
+		}
+
+		/**
+		 * Returns true if the Function is kept in the destination and only
+		 * its '@generatedFrom' tag is changed, because its source has moved.
+		 *
+		 * @return
+		 */
+		public boolean isMove() {
+			return newSource != null;
+		}
+
+		/**
+		 * Returns the name of the Function.
+		 *
+		 * @return
+		 */
+		public String getFunction() {
+			return function;
+		}
+
+		/**
+		 * Returns the full path of the resource the Function is (or was)
+		 * generated from.
+		 *
+		 * @return
+		 */
+		public IPath getSource() {
+			return source;
+		}
+
+		/**
+		 * Returns the full path the source has moved to, or null if it has
+		 * not.
+		 *
+		 * @return
+		 */
+		public IPath getNewSource() {
+			return newSource;
+		}
+
+		/**
+		 * Returns the Function to copy, or null for a removal.
+		 *
+		 * @return
+		 */
+		public FunctionDeclaration getSourceFunction() {
+			return sourceFunction;
+		}
+
+		/**
+		 * Returns the fingerprint of the Function as it will appear in the
+		 * destination, or null if it is not a copy.
+		 *
+		 * @return
+		 */
+		public String getFingerprint() {
+			return fingerprint;
+		}
+	}
+
+	private final Map<IFile, List<Operation>> operations = new LinkedHashMap<IFile, List<Operation>>();
+
+	/**
+	 * Plans to copy a Function into a destination, replacing any existing
+	 * Function with the same name.
+	 *
+	 * @param destination
+	 * @param source
+	 * @param sourceFunction
+	 *            the Function to copy. It is not modified.
+	 * @param fingerprint
+	 */
+	public synchronized void addCopy(IFile destination, IPath source,
+			FunctionDeclaration sourceFunction, String fingerprint) {
+		String function = sourceFunction.getName().toString();
+		List<Operation> list = getList(destination);
+		for (int n = list.size() - 1; n >= 0; n--) {
+			if (list.get(n).isCopy() && list.get(n).getFunction().equals(function)) {
+				list.remove(n);
+			}
+		}
+		list.add(new Operation(true, function, source, null, sourceFunction,
+				fingerprint));
+	}
+
+	/**
+	 * Plans to remove a Function from a destination, provided it is still
+	 * tagged as generated from the given source.
+	 *
+	 * @param destination
+	 * @param function
+	 * @param source
+	 */
+	public synchronized void addRemove(IFile destination, String function,
+			IPath source) {
+		getList(destination).add(
+				new Operation(false, function, source, null, null, null));
+	}
+
+	/**
+	 * Plans to change the '@generatedFrom' tag of a Function in a destination
+	 * to the new path of its source, provided it is still tagged as generated
+	 * from the old path. The Function is otherwise left as it is.
+	 *
+	 * @param destination
+	 * @param function
+	 * @param source
+	 * @param newSource
+	 */
+	public synchronized void addMove(IFile destination, String function,
+			IPath source, IPath newSource) {
+		getList(destination).add(
+				new Operation(false, function, source, newSource, null, null));
+	}
+
+	/**
+	 * Returns the destinations with planned changes, in the order they were
+	 * first planned.
+	 *
+	 * @return
+	 */
+	public synchronized List<IFile> getDestinations() {
+		return new ArrayList<IFile>(operations.keySet());
+	}
+
+	/**
+	 * Returns the planned changes for a destination, in the order they must be
+	 * applied.
+	 *
+	 * @param destination
+	 * @return
+	 */
+	public synchronized List<Operation> getOperations(IFile destination) {
+		List<Operation> list = operations.get(destination);
+		return list == null ? new ArrayList<Operation>()
+				: new ArrayList<Operation>(list);
+	}
+
+	/**
+	 * Returns true if nothing is planned.
+	 *
+	 * @return
+	 */
+	public synchronized boolean isEmpty() {
+		return operations.isEmpty();
+	}
+
+	/**
+	 * Discards every planned change.
+	 */
+	public synchronized void clear() {
+		operations.clear();
+	}
+
+	private List<Operation> getList(IFile destination) {
+		List<Operation> list = operations.get(destination);
+		if (list == null) {
+			list = new ArrayList<Operation>();
+			operations.put(destination, list);
+		}
+		return list;
+	}
+}
@@ -46,7 +46,41 @@ public class BuilderPreferencePage
 				"&Private key file:", getFieldEditorParent()));
 
 		addField(
-			new StringFieldEditor(PreferenceConstants.REMOTE_PATH, "&Remote path:", getFieldEditorParent()));
+			new StringFieldEditor(PreferenceConstants.REMOTE_PATH, "&Remote paths (comma separated):", getFieldEditorParent()));
+
+		addField(new IntegerFieldEditor(PreferenceConstants.UPLOAD_CHANNELS,
+				"&Concurrent upload channels:", getFieldEditorParent()));
+
+		addField(new IntegerFieldEditor(PreferenceConstants.UPLOAD_CHUNK_SIZE,
+				"Upload chunk si&ze in KB:", getFieldEditorParent()));
+
+		addField(new IntegerFieldEditor(PreferenceConstants.TAR_THRESHOLD,
+				"&Send batches of this many files as a tar stream (0 to disable):",
+				getFieldEditorParent()));
+
+		addField(
+				new BooleanFieldEditor(
+					PreferenceConstants.TAR_COMPRESS,
+					"Co&mpress tar streams",
+					getFieldEditorParent()));
+
+		addField(new IntegerFieldEditor(PreferenceConstants.AST_CACHE_SIZE,
+				"&Maximum number of cached ASTs:", getFieldEditorParent()));
+
+		addField(
+				new BooleanFieldEditor(
+					PreferenceConstants.AST_CACHE_RETAIN,
+					"Re&tain cached ASTs between builds",
+					getFieldEditorParent()));
+
+		addField(new IntegerFieldEditor(PreferenceConstants.BUILD_THREADS,
+				"&Build threads (0 for one per processor):", getFieldEditorParent()));
+
+		addField(
+			new StringFieldEditor(PreferenceConstants.INCLUDE_PATTERNS, "&Include patterns:", getFieldEditorParent()));
+
+		addField(
+			new StringFieldEditor(PreferenceConstants.EXCLUDE_PATTERNS, "E&xclude patterns:", getFieldEditorParent()));
 	}
 
 	/* (non-Javadoc)
@@ -7,4 +7,13 @@ public class PreferenceConstants {
 	public static final String PRIVATE_KEY = "pathPreference";
 	public static final String ENABLE_REMOTE_COPY = "booleanPreference";
 	public static final String REMOTE_PATH = "stringPreference";
+	public static final String AST_CACHE_SIZE = "astCacheSize";
+	public static final String AST_CACHE_RETAIN = "astCacheRetain";
+	public static final String BUILD_THREADS = "buildThreads";
+	public static final String INCLUDE_PATTERNS = "includePatterns";
+	public static final String EXCLUDE_PATTERNS = "excludePatterns";
+	public static final String UPLOAD_CHANNELS = "uploadChannels";
+	public static final String TAR_THRESHOLD = "tarThreshold";
+	public static final String TAR_COMPRESS = "tarCompress";
+	public static final String UPLOAD_CHUNK_SIZE = "uploadChunkSize";
 }
@@ -19,5 +19,15 @@ public class PreferenceInitializer extends AbstractPreferenceInitializer {
 		IPreferenceStore store = Activator.getDefault().getPreferenceStore();
 		store.setDefault(PreferenceConstants.ENABLE_REMOTE_COPY, false);
 		store.setDefault(PreferenceConstants.REMOTE_PATH, "user@host:path");
+		store.setDefault(PreferenceConstants.AST_CACHE_SIZE, 128);
+		store.setDefault(PreferenceConstants.AST_CACHE_RETAIN, false);
+		store.setDefault(PreferenceConstants.BUILD_THREADS, 0);
+		store.setDefault(PreferenceConstants.INCLUDE_PATTERNS, "");
+		store.setDefault(PreferenceConstants.EXCLUDE_PATTERNS,
+				"node_modules, bower_components, .git, .svn, .hg, dist, build, coverage");
+		store.setDefault(PreferenceConstants.UPLOAD_CHANNELS, 4);
+		store.setDefault(PreferenceConstants.TAR_THRESHOLD, 50);
+		store.setDefault(PreferenceConstants.TAR_COMPRESS, true);
+		store.setDefault(PreferenceConstants.UPLOAD_CHUNK_SIZE, 64);
 	}
 }
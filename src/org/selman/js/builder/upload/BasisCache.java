@@ -0,0 +1,147 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Daniel Selman}.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Daniel Selman - initial API and implementation and/or initial documentation
+ *******************************************************************************/
+
+package org.selman.js.builder.upload;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.selman.js.builder.Activator;
+import org.selman.js.builder.Fingerprint;
+
+/**
+ * Keeps a local copy of the last content uploaded for large files, in the
+ * plug-in state location, so that the next upload of the file can be sent as
+ * a delta against it.
+ *
+ * @author dselman
+ */
+public class BasisCache {
+
+	private final File directory;
+
+	/**
+	 * Creates a cache for a remote target.
+	 *
+	 * @param target
+	 */
+	public BasisCache(RemoteTarget target) {
+		directory = Activator.getDefault().getStateLocation()
+				.append("basis").append(Fingerprint.of(target.getUri()))
+				.toFile();
+	}
+
+	/**
+	 * Returns the cached content for a remote path, or null if there is none.
+	 *
+	 * @param remotePath
+	 * @return
+	 */
+	public byte[] get(String remotePath) {
+		File file = getFile(remotePath);
+		if (!file.isFile()) {
+			return null;
+		}
+		try {
+			return read(file);
+		} catch (IOException e) {
+			file.delete();
+			return null;
+		}
+	}
+
+	/**
+	 * Caches the content uploaded to a remote path.
+	 *
+	 * @param remotePath
+	 * @param content
+	 */
+	public void put(String remotePath, byte[] content) {
+		directory.mkdirs();
+		File file = getFile(remotePath);
+		File tmp = new File(file.getPath() + ".tmp");
+		try {
+			OutputStream out = new FileOutputStream(tmp);
+			try {
+				out.write(content);
+			} finally {
+				out.close();
+			}
+			file.delete();
+			if (!tmp.renameTo(file)) {
+				tmp.delete();
+			}
+		} catch (IOException e) {
+			tmp.delete();
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Forgets the cached content for a remote path.
+	 *
+	 * @param remotePath
+	 */
+	public void remove(String remotePath) {
+		getFile(remotePath).delete();
+	}
+
+	/**
+	 * Moves the cached content for a remote path to another, after the
+	 * remote file has been renamed.
+	 *
+	 * @param remotePath
+	 * @param newPath
+	 */
+	public void rename(String remotePath, String newPath) {
+		File file = getFile(remotePath);
+		File newFile = getFile(newPath);
+		newFile.delete();
+		if (file.isFile() && !file.renameTo(newFile)) {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Reads the whole of a file.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	static byte[] read(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] content = new byte[(int) file.length()];
+			int offset = 0;
+			int read;
+			while (offset < content.length
+					&& (read = in.read(content, offset, content.length
+							- offset)) > 0) {
+				offset += read;
+			}
+			if (offset < content.length || in.read() != -1) {
+				throw new IOException("File changed while reading " + file);
+			}
+			return content;
+		} finally {
+			in.close();
+		}
+	}
+
+	private File getFile(String remotePath) {
+		return new File(directory, Fingerprint.of(remotePath));
+	}
+}
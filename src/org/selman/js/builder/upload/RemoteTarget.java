@@ -0,0 +1,114 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Daniel Selman}.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Daniel Selman - initial API and implementation and/or initial documentation
+ *******************************************************************************/
+
+package org.selman.js.builder.upload;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A remote directory, in the form user@host:path, and the private key used to
+ * log in to its host. A directory given as sftp://user@host:path is sent to
+ * over sftp instead of scp.
+ *
+ * @author dselman
+ */
+public class RemoteTarget {
+
+	private static final String SFTP_PREFIX = "sftp://";
+
+	private final String uri;
+	private final String keyfile;
+	private final boolean sftp;
+
+	/**
+	 * @param uri
+	 *            the remote directory, in the form user@host:path or
+	 *            sftp://user@host:path
+	 * @param keyfile
+	 *            the private key file
+	 */
+	public RemoteTarget(String uri, String keyfile) {
+		this.sftp = uri.startsWith(SFTP_PREFIX);
+		this.uri = sftp ? uri.substring(SFTP_PREFIX.length()) : uri;
+		this.keyfile = keyfile;
+	}
+
+	/**
+	 * Parses a comma separated list of remote directories, all logged in to
+	 * with the same private key.
+	 *
+	 * @param uris
+	 *            the remote directories, in the form user@host:path
+	 * @param keyfile
+	 *            the private key file
+	 * @return the targets, without duplicates, in the order given
+	 */
+	public static List<RemoteTarget> parse(String uris, String keyfile) {
+		List<RemoteTarget> targets = new ArrayList<RemoteTarget>();
+		for (String uri : uris.split(",")) {
+			RemoteTarget target = new RemoteTarget(uri.trim(), keyfile);
+			if (target.uri.length() > 0 && !targets.contains(target)) {
+				targets.add(target);
+			}
+		}
+		return targets;
+	}
+
+	/**
+	 * Returns the remote directory, in the form user@host:path.
+	 *
+	 * @return
+	 */
+	public String getUri() {
+		return uri;
+	}
+
+	/**
+	 * Returns true if the remote directory is sent to over sftp.
+	 *
+	 * @return
+	 */
+	public boolean isSftp() {
+		return sftp;
+	}
+
+	/**
+	 * Returns the private key file.
+	 *
+	 * @return
+	 */
+	public String getKeyfile() {
+		return keyfile;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof RemoteTarget)) {
+			return false;
+		}
+		RemoteTarget that = (RemoteTarget) obj;
+		return uri.equals(that.uri) && sftp == that.sftp
+				&& (keyfile == null ? that.keyfile == null : keyfile
+						.equals(that.keyfile));
+	}
+
+	@Override
+	public int hashCode() {
+		return (uri.hashCode() * 31 + (keyfile == null ? 0 : keyfile
+				.hashCode())) * 2 + (sftp ? 1 : 0);
+	}
+
+	@Override
+	public String toString() {
+		return sftp ? SFTP_PREFIX + uri : uri;
+	}
+}
@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Daniel Selman}.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Daniel Selman - initial API and implementation and/or initial documentation
+ *******************************************************************************/
+
+package org.selman.js.builder.upload;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A request to send a local file to a path relative to a remote directory.
+ * The content of the file is read when it is sent, not when the request is
+ * made, so the latest saved content is always the one uploaded. Content that
+ * has just been written, and is still in memory, may be given with the
+ * request instead, in which case the file is not read.
+ *
+ * @author dselman
+ */
+public class Upload {
+
+	private final RemoteTarget target;
+	private final File localFile;
+	private final String remotePath;
+	private final byte[] content;
+
+	/**
+	 * @param target
+	 *            the remote directory
+	 * @param localFile
+	 *            the file to send
+	 * @param remotePath
+	 *            the '/' separated path of the file relative to the remote
+	 *            directory
+	 */
+	public Upload(RemoteTarget target, File localFile, String remotePath) {
+		this(target, localFile, remotePath, null);
+	}
+
+	/**
+	 * @param target
+	 *            the remote directory
+	 * @param localFile
+	 *            the file to send
+	 * @param remotePath
+	 *            the '/' separated path of the file relative to the remote
+	 *            directory
+	 * @param content
+	 *            the content of the file, or null to read it when it is sent
+	 */
+	public Upload(RemoteTarget target, File localFile, String remotePath,
+			byte[] content) {
+		this.target = target;
+		this.localFile = localFile;
+		this.remotePath = remotePath;
+		this.content = content;
+	}
+
+	public RemoteTarget getTarget() {
+		return target;
+	}
+
+	public File getLocalFile() {
+		return localFile;
+	}
+
+	public String getRemotePath() {
+		return remotePath;
+	}
+
+	/**
+	 * Returns the content given with the request, or null if the file is
+	 * read when it is sent.
+	 *
+	 * @return
+	 */
+	public byte[] getContent() {
+		return content;
+	}
+
+	/**
+	 * Returns the content to send, from memory if it was given with the
+	 * request and from the file otherwise.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	byte[] read() throws IOException {
+		return content != null ? content : BasisCache.read(localFile);
+	}
+
+	/**
+	 * Returns the key under which repeated uploads to the same remote file
+	 * are coalesced.
+	 *
+	 * @return
+	 */
+	String getKey() {
+		return getKey(target, remotePath);
+	}
+
+	/**
+	 * Returns the key of the uploads to a remote file.
+	 *
+	 * @param target
+	 * @param remotePath
+	 * @return
+	 */
+	static String getKey(RemoteTarget target, String remotePath) {
+		return target + "/" + remotePath;
+	}
+
+	@Override
+	public String toString() {
+		return localFile + " -> " + getKey();
+	}
+}
@@ -0,0 +1,295 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Daniel Selman}.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Daniel Selman - initial API and implementation and/or initial documentation
+ *******************************************************************************/
+
+package org.selman.js.builder.upload;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.selman.js.builder.AtomicFile;
+
+/**
+ * Records on disk the uploads that have been queued but not yet sent, so that
+ * they survive a failed transfer, a crash or a restart of the workbench.
+ * <p>
+ * The journal is a log that records are appended to: one when an upload is
+ * queued or retried, and one when it is done with. When the journal is
+ * loaded the records are replayed and the newest record for each remote file
+ * wins. Since the content of a file is read when it is sent, only the newest
+ * content is ever uploaded. The log is rewritten with just the pending
+ * uploads when it is loaded, and whenever it has grown much larger than them.
+ * Records are synced to disk by {@link #sync()}, which callers make once per
+ * batch of records rather than once per record, and the log is replaced
+ * atomically when it is rewritten.
+ *
+ * @author dselman
+ */
+public class UploadJournal {
+
+	private static final String HEADER = "# js.builder upload journal 1";
+
+	private static final String SEPARATOR = "\t";
+
+	private static final String ADD = "+";
+
+	private static final String REMOVE = "-";
+
+	/**
+	 * Ends every record, so that a record cut short by a crash is ignored.
+	 */
+	private static final String END = ";";
+
+	/**
+	 * The journal is compacted when it holds this many more records than
+	 * there are pending uploads.
+	 */
+	private static final int COMPACT_THRESHOLD = 1024;
+
+	/**
+	 * A pending upload and the number of times sending it has failed.
+	 */
+	public static class Entry {
+		private final Upload upload;
+		private final int attempts;
+
+		Entry(Upload upload, int attempts) {
+			this.upload = upload;
+			this.attempts = attempts;
+		}
+
+		public Upload getUpload() {
+			return upload;
+		}
+
+		public int getAttempts() {
+			return attempts;
+		}
+	}
+
+	private final File file;
+	private final Map<String, Entry> pending = new LinkedHashMap<String, Entry>();
+	private FileOutputStream stream;
+	private Writer writer;
+	private boolean unsynced;
+	private int records;
+
+	/**
+	 * Creates a journal persisted to the given file. The journal is empty
+	 * until {@link #load()} is called.
+	 *
+	 * @param file
+	 */
+	public UploadJournal(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Records that an upload is pending, replacing any earlier record for the
+	 * same remote file.
+	 *
+	 * @param upload
+	 * @param attempts
+	 *            the number of times sending it has failed
+	 */
+	public synchronized void add(Upload upload, int attempts) {
+		pending.put(upload.getKey(), new Entry(upload, attempts));
+		append(format(upload, attempts));
+	}
+
+	/**
+	 * Records that an upload is no longer pending, because it was sent or
+	 * given up on.
+	 *
+	 * @param upload
+	 */
+	public synchronized void remove(Upload upload) {
+		if (pending.remove(upload.getKey()) != null) {
+			append(REMOVE + SEPARATOR + upload.getKey() + SEPARATOR + END);
+			if (records > pending.size() + COMPACT_THRESHOLD) {
+				compact();
+			}
+		}
+	}
+
+	/**
+	 * Returns the pending uploads, oldest first.
+	 *
+	 * @return
+	 */
+	public synchronized List<Entry> getPending() {
+		return new ArrayList<Entry>(pending.values());
+	}
+
+	/**
+	 * Loads the journal from disk and compacts it. If the file does not
+	 * exist the journal is empty.
+	 */
+	public synchronized void load() {
+		pending.clear();
+		close();
+		File base = new AtomicFile(file).getBaseFile();
+		if (base.isFile()) {
+			try {
+				BufferedReader reader = new BufferedReader(
+						new InputStreamReader(new FileInputStream(base),
+								"UTF-8"));
+				try {
+					if (HEADER.equals(reader.readLine())) {
+						String line;
+						while ((line = reader.readLine()) != null) {
+							replay(line.split(SEPARATOR, -1));
+						}
+					}
+				} finally {
+					reader.close();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		compact();
+	}
+
+	/**
+	 * Syncs the records written since the last sync to disk, so that a crash
+	 * of the workbench, or of the machine, does not lose them.
+	 */
+	public synchronized void sync() {
+		if (writer == null || !unsynced) {
+			return;
+		}
+		try {
+			writer.flush();
+			stream.getFD().sync();
+			unsynced = false;
+		} catch (IOException e) {
+			close();
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Syncs and closes the journal file. It is reopened by the next change.
+	 */
+	public synchronized void close() {
+		if (writer != null) {
+			try {
+				writer.flush();
+				if (unsynced) {
+					stream.getFD().sync();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			try {
+				writer.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			writer = null;
+			stream = null;
+			unsynced = false;
+		}
+	}
+
+	private void replay(String[] fields) {
+		if (!END.equals(fields[fields.length - 1])) {
+			return;
+		}
+		if (fields.length == 7 && ADD.equals(fields[0])) {
+			try {
+				Upload upload = new Upload(new RemoteTarget(fields[2],
+						fields[3]), new File(fields[4]), fields[5]);
+				pending.remove(upload.getKey());
+				pending.put(upload.getKey(), new Entry(upload, Integer
+						.parseInt(fields[1])));
+			} catch (NumberFormatException e) {
+				// a damaged record
+			}
+		} else if (fields.length == 3 && REMOVE.equals(fields[0])) {
+			pending.remove(fields[1]);
+		}
+	}
+
+	/**
+	 * Rewrites the journal with just the pending uploads.
+	 */
+	private void compact() {
+		close();
+		AtomicFile atomic = new AtomicFile(file);
+		FileOutputStream tmp = null;
+		try {
+			tmp = atomic.startWrite();
+			Writer out = new BufferedWriter(new OutputStreamWriter(tmp,
+					"UTF-8"));
+			out.write(HEADER);
+			out.write('\n');
+			for (Entry entry : pending.values()) {
+				out.write(format(entry.getUpload(), entry.getAttempts()));
+				out.write('\n');
+			}
+			out.flush();
+			if (atomic.finishWrite(tmp)) {
+				records = pending.size();
+			}
+		} catch (IOException e) {
+			if (tmp != null) {
+				atomic.failWrite(tmp);
+			}
+			e.printStackTrace();
+		}
+	}
+
+	private static String format(Upload upload, int attempts) {
+		return ADD + SEPARATOR + attempts + SEPARATOR + upload.getTarget()
+				+ SEPARATOR + nullToEmpty(upload.getTarget().getKeyfile())
+				+ SEPARATOR + upload.getLocalFile().getPath() + SEPARATOR
+				+ upload.getRemotePath() + SEPARATOR + END;
+	}
+
+	private void append(String record) {
+		try {
+			if (writer == null) {
+				boolean exists = new AtomicFile(file).getBaseFile().isFile();
+				file.getParentFile().mkdirs();
+				stream = new FileOutputStream(file, true);
+				writer = new BufferedWriter(new OutputStreamWriter(stream,
+						"UTF-8"));
+				if (!exists) {
+					writer.write(HEADER);
+					writer.write('\n');
+				}
+			}
+			writer.write(record);
+			writer.write('\n');
+			unsynced = true;
+			records++;
+		} catch (IOException e) {
+			close();
+			e.printStackTrace();
+		}
+	}
+
+	private static String nullToEmpty(String value) {
+		return value == null ? "" : value;
+	}
+}
@@ -0,0 +1,343 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Daniel Selman}.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Daniel Selman - initial API and implementation and/or initial documentation
+ *******************************************************************************/
+
+package org.selman.js.builder.upload;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.selman.js.builder.Activator;
+import org.selman.js.builder.AtomicFile;
+import org.selman.js.builder.Fingerprint;
+
+/**
+ * Records, for one remote target, the size, modification time and content
+ * fingerprint of every file that has been uploaded to it. A file whose content
+ * matches what was last uploaded is not sent again, even by a full build.
+ * <p>
+ * The size and modification time are checked first, so unchanged files are
+ * not read. A file whose modification time changed but whose content did not,
+ * for example because it was rewritten by a full build, is read once to
+ * compare its fingerprint.
+ * <p>
+ * The manifest only knows what this workspace sent. If the remote files are
+ * changed by other means the manifest should be cleared.
+ *
+ * @author dselman
+ */
+public class UploadManifest {
+
+	private static final String HEADER = "# js.builder upload manifest 1";
+
+	private static final String SEPARATOR = "\t";
+
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	/**
+	 * The recorded state of an uploaded file.
+	 */
+	public static class Entry {
+		private final long size;
+		private final long modified;
+		private final String fingerprint;
+
+		Entry(long size, long modified, String fingerprint) {
+			this.size = size;
+			this.modified = modified;
+			this.fingerprint = fingerprint;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public long getModified() {
+			return modified;
+		}
+
+		public String getFingerprint() {
+			return fingerprint;
+		}
+	}
+
+	private static final Map<RemoteTarget, UploadManifest> manifests = new HashMap<RemoteTarget, UploadManifest>();
+
+	private final File file;
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+	private boolean dirty;
+
+	/**
+	 * Creates a manifest persisted to the given file. The manifest is empty
+	 * until {@link #load()} is called.
+	 *
+	 * @param file
+	 */
+	public UploadManifest(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Returns the shared manifest for a remote target, loading it from the
+	 * plug-in state location on first use.
+	 *
+	 * @param target
+	 * @return
+	 */
+	public static synchronized UploadManifest getManifest(RemoteTarget target) {
+		UploadManifest manifest = manifests.get(target);
+		if (manifest == null) {
+			manifest = new UploadManifest(Activator.getDefault()
+					.getStateLocation()
+					.append(Fingerprint.of(target.getUri()) + ".manifest")
+					.toFile());
+			manifest.load();
+			manifests.put(target, manifest);
+		}
+		return manifest;
+	}
+
+	/**
+	 * Compares a local file with what was last uploaded to a remote path.
+	 *
+	 * @param remotePath
+	 * @param localFile
+	 * @return null if the remote already has the content of the file,
+	 *         otherwise the entry to {@link #record} once the file is sent
+	 */
+	public Entry check(String remotePath, File localFile) {
+		return check(remotePath, localFile, null);
+	}
+
+	/**
+	 * Compares the content of a local file, which may be held in memory,
+	 * with what was last uploaded to a remote path.
+	 *
+	 * @param remotePath
+	 * @param localFile
+	 * @param content
+	 *            the content of the file, or null to read the file
+	 * @return null if the remote already has the content, otherwise the
+	 *         entry to {@link #record} once the content is sent
+	 */
+	public Entry check(String remotePath, File localFile, byte[] content) {
+		long size = content != null ? content.length : localFile.length();
+		long modified = localFile.lastModified();
+		Entry entry;
+		synchronized (this) {
+			entry = entries.get(remotePath);
+		}
+		if (entry != null && entry.size == size && entry.modified == modified) {
+			return null;
+		}
+
+		String fingerprint = content != null ? Fingerprint.of(content)
+				: fingerprint(localFile);
+		Entry current = new Entry(size, modified, fingerprint);
+		if (entry != null && entry.size == size && fingerprint != null
+				&& fingerprint.equals(entry.fingerprint)) {
+			// same content, remember the new time so it is not read again
+			record(remotePath, current);
+			return null;
+		}
+		return current;
+	}
+
+	/**
+	 * Returns what was last uploaded to a remote path, or null if nothing
+	 * was.
+	 *
+	 * @param remotePath
+	 * @return
+	 */
+	public synchronized Entry getEntry(String remotePath) {
+		return entries.get(remotePath);
+	}
+
+	/**
+	 * Records that a file has been sent to a remote path.
+	 *
+	 * @param remotePath
+	 * @param entry
+	 *            the entry returned by {@link #check}
+	 */
+	public synchronized void record(String remotePath, Entry entry) {
+		if (entry.fingerprint == null) {
+			forget(remotePath);
+		} else {
+			entries.put(remotePath, entry);
+			dirty = true;
+		}
+	}
+
+	/**
+	 * Forgets a remote path, so that it is sent by the next upload.
+	 *
+	 * @param remotePath
+	 */
+	public synchronized void forget(String remotePath) {
+		if (entries.remove(remotePath) != null) {
+			dirty = true;
+		}
+	}
+
+	/**
+	 * Moves what was uploaded to a remote path to another, after the remote
+	 * file has been renamed, so that the file is not sent again under its
+	 * new path.
+	 *
+	 * @param remotePath
+	 * @param newPath
+	 */
+	public synchronized void rename(String remotePath, String newPath) {
+		Entry entry = entries.remove(remotePath);
+		if (entry != null) {
+			entries.put(newPath, entry);
+			dirty = true;
+		} else {
+			forget(newPath);
+		}
+	}
+
+	/**
+	 * Forgets every remote path, so that every file is sent again.
+	 */
+	public synchronized void clear() {
+		if (!entries.isEmpty()) {
+			entries.clear();
+			dirty = true;
+		}
+	}
+
+	/**
+	 * Returns the number of remote paths in the manifest.
+	 *
+	 * @return
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Loads the manifest from disk. If the file does not exist or cannot be
+	 * read the manifest is left empty.
+	 */
+	public synchronized void load() {
+		entries.clear();
+		dirty = false;
+
+		File base = new AtomicFile(file).getBaseFile();
+		if (!base.isFile()) {
+			return;
+		}
+
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(
+					new FileInputStream(base), "UTF-8"));
+			try {
+				if (!HEADER.equals(reader.readLine())) {
+					return;
+				}
+				String line;
+				while ((line = reader.readLine()) != null) {
+					String[] fields = line.split(SEPARATOR);
+					if (fields.length == 4) {
+						entries.put(fields[0], new Entry(Long
+								.parseLong(fields[1]), Long
+								.parseLong(fields[2]), fields[3]));
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (NumberFormatException e) {
+			entries.clear();
+			e.printStackTrace();
+		} catch (IOException e) {
+			entries.clear();
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Writes the manifest to disk if it has changed since it was last loaded
+	 * or saved.
+	 */
+	public synchronized void save() {
+		if (!dirty) {
+			return;
+		}
+
+		AtomicFile atomic = new AtomicFile(file);
+		FileOutputStream out = null;
+		try {
+			out = atomic.startWrite();
+			BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+					out, "UTF-8"));
+			writer.write(HEADER);
+			writer.newLine();
+			for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+				writer.write(entry.getKey());
+				writer.write(SEPARATOR);
+				writer.write(Long.toString(entry.getValue().size));
+				writer.write(SEPARATOR);
+				writer.write(Long.toString(entry.getValue().modified));
+				writer.write(SEPARATOR);
+				writer.write(entry.getValue().fingerprint);
+				writer.newLine();
+			}
+			writer.flush();
+			if (atomic.finishWrite(out)) {
+				dirty = false;
+			}
+		} catch (IOException e) {
+			if (out != null) {
+				atomic.failWrite(out);
+			}
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Returns the fingerprint of the content of a file, or null if it cannot
+	 * be read.
+	 *
+	 * @param localFile
+	 * @return
+	 */
+	private static String fingerprint(File localFile) {
+		try {
+			MessageDigest digest = Fingerprint.newDigest();
+			InputStream in = new FileInputStream(localFile);
+			try {
+				byte[] buffer = new byte[BUFFER_SIZE];
+				int read;
+				while ((read = in.read(buffer)) > 0) {
+					digest.update(buffer, 0, read);
+				}
+			} finally {
+				in.close();
+			}
+			return Fingerprint.toHex(digest.digest());
+		} catch (IOException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,1066 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Daniel Selman}.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Daniel Selman - initial API and implementation and/or initial documentation
+ *******************************************************************************/
+
+package org.selman.js.builder.upload;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.MultiStatus;
+import org.eclipse.core.runtime.OperationCanceledException;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.SubMonitor;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.jface.preference.IPreferenceStore;
+import org.selman.js.builder.Activator;
+import org.selman.js.builder.Fingerprint;
+import org.selman.js.builder.preferences.PreferenceConstants;
+import org.selman.scp.LogListener;
+import org.selman.scp.RemoteChange;
+import org.selman.scp.Scp;
+import org.selman.scp.SessionPool;
+import org.selman.scp.Transfer;
+
+/**
+ * Sends files to remote servers in the background, so that builds never wait
+ * for the network. Uploads are queued by the builders and sent in batches by
+ * one Job per remote target, over one ssh session per host.
+ * <ul>
+ * <li>Targets are sent to concurrently and independently: a slow or
+ * unreachable host only delays its own uploads, and failures are reported per
+ * target.</li>
+ * <li>Repeated uploads of the same file are coalesced while queued: the file
+ * is sent once, with its content at the time it is sent.</li>
+ * <li>Files whose content the remote already has, according to the
+ * {@link UploadManifest} of the target, are skipped.</li>
+ * <li>Large files the target has an earlier version of are sent as deltas
+ * against that version, when the target has python to apply them.</li>
+ * <li>Queued uploads are recorded in an {@link UploadJournal}, so they are
+ * not lost if a transfer fails or the workbench stops before they are sent.
+ * Failed uploads are retried, with a delay that doubles after each failed
+ * attempt, and given up on after {@value #MAX_ATTEMPTS} attempts. A file that
+ * fails only delays itself; a target that cannot be connected to is not sent
+ * to at all until a delay that doubles after each failed connection.</li>
+ * <li>Files deleted or renamed locally are deleted or renamed on the target,
+ * before the uploads queued with them are sent. The changes queued for a
+ * target are made by a single command, and a renamed file is not sent again.
+ * Failed changes are reported but not retried, and the files involved are
+ * sent in full by their next upload.</li>
+ * <li>The queue is bounded. When it is full, {@link #enqueue} blocks until
+ * the Job has made room, which slows down the builder instead of letting the
+ * queue grow without limit. Uploads waiting to be retried are not counted, so
+ * a target that is down cannot fill the queue and block the others.</li>
+ * </ul>
+ *
+ * @author dselman
+ */
+public class UploadService {
+
+	/**
+	 * The default maximum number of queued uploads.
+	 */
+	private static final int DEFAULT_CAPACITY = 1024;
+
+	/**
+	 * How often, in milliseconds, a blocked enqueue checks for cancellation.
+	 */
+	private static final long WAIT_INTERVAL = 100;
+
+	/**
+	 * Timeout in milliseconds for connecting to the remote server.
+	 */
+	private static final int SCP_TIMEOUT = 30 * 1000;
+
+	/**
+	 * Files between these sizes are sent as deltas against the previous
+	 * upload when possible. Smaller files are not worth the extra round trip
+	 * and larger ones are not read into memory.
+	 */
+	private static final long DELTA_MIN_SIZE = 64 * 1024;
+	private static final long DELTA_MAX_SIZE = 32 * 1024 * 1024;
+
+	/**
+	 * The delay in milliseconds before the first retry of a failed upload or
+	 * connection, and the longest delay between retries.
+	 */
+	private static final long RETRY_DELAY = 1000;
+	private static final long MAX_RETRY_DELAY = 5 * 60 * 1000;
+
+	/**
+	 * The number of failed attempts after which an upload is given up on.
+	 */
+	private static final int MAX_ATTEMPTS = 12;
+
+	/**
+	 * Sends the log messages of the transfers, such as the throughput of each
+	 * file, to the trace output.
+	 */
+	private static final LogListener TRACE = new LogListener() {
+		public void log(String message) {
+			Activator.trace(message.trim());
+		}
+	};
+
+	private static UploadService service;
+
+	private final Map<String, Upload> queue = new LinkedHashMap<String, Upload>();
+	private final Map<String, Upload> retries = new LinkedHashMap<String, Upload>();
+	private final Map<String, Long> retryTimes = new HashMap<String, Long>();
+	private final Map<RemoteTarget, List<RemoteChange>> changes = new HashMap<RemoteTarget, List<RemoteChange>>();
+	private final Map<RemoteTarget, TargetJob> jobs = new LinkedHashMap<RemoteTarget, TargetJob>();
+	private final Map<String, Integer> attempts = new HashMap<String, Integer>();
+	private final UploadJournal journal;
+	private int capacity = DEFAULT_CAPACITY;
+	private int inFlight;
+	private int completed;
+	private int failed;
+	private int skipped;
+	private int deltas;
+	private long bytesSaved;
+
+	/**
+	 * Returns the upload service shared by every builder in the workspace.
+	 *
+	 * @return
+	 */
+	public static synchronized UploadService getDefault() {
+		if (service == null) {
+			service = new UploadService();
+			service.resume();
+		}
+		return service;
+	}
+
+	/**
+	 * Cancels the shared upload service and discards its queue. Uploads that
+	 * were not sent remain in the journal and are sent when the service is
+	 * next used.
+	 */
+	public static synchronized void shutdown() {
+		if (service != null) {
+			synchronized (service) {
+				for (TargetJob job : service.jobs.values()) {
+					job.cancel();
+				}
+				service.queue.clear();
+				service.retries.clear();
+				service.retryTimes.clear();
+				service.changes.clear();
+				service.journal.close();
+				service.notifyAll();
+			}
+			service = null;
+		}
+	}
+
+	private UploadService() {
+		journal = new UploadJournal(Activator.getDefault().getStateLocation()
+				.append("uploads.journal").toFile());
+	}
+
+	/**
+	 * Queues the uploads left in the journal by an earlier session.
+	 */
+	private void resume() {
+		List<TargetJob> resumed = new ArrayList<TargetJob>();
+		synchronized (this) {
+			journal.load();
+			for (UploadJournal.Entry entry : journal.getPending()) {
+				Upload upload = entry.getUpload();
+				if (entry.getAttempts() > 0) {
+					retries.put(upload.getKey(), upload);
+				} else {
+					queue.put(upload.getKey(), upload);
+				}
+				attempts.put(upload.getKey(), entry.getAttempts());
+				TargetJob job = getJob(upload.getTarget());
+				if (!resumed.contains(job)) {
+					resumed.add(job);
+				}
+			}
+		}
+		for (TargetJob job : resumed) {
+			job.schedule();
+		}
+	}
+
+	/**
+	 * Sets the maximum number of queued uploads.
+	 *
+	 * @param capacity
+	 */
+	public synchronized void setCapacity(int capacity) {
+		this.capacity = Math.max(1, capacity);
+		notifyAll();
+	}
+
+	/**
+	 * Queues a file to be uploaded. If the same remote file is already queued
+	 * the two uploads are coalesced. If the queue is full this blocks until
+	 * there is room.
+	 *
+	 * @param upload
+	 * @param monitor
+	 *            checked for cancellation while blocked
+	 * @throws OperationCanceledException
+	 *             if the monitor is cancelled while blocked
+	 */
+	public void enqueue(Upload upload, IProgressMonitor monitor) {
+		enqueueAll(Collections.singletonList(upload), monitor);
+	}
+
+	/**
+	 * Queues files to be uploaded, as {@link #enqueue} does for each of them.
+	 * The journal is synced to disk once for all of them, so a builder queues
+	 * its files without waiting for the disk for each one.
+	 *
+	 * @param uploads
+	 * @param monitor
+	 *            checked for cancellation while blocked
+	 * @throws OperationCanceledException
+	 *             if the monitor is cancelled while blocked
+	 */
+	public void enqueueAll(Collection<Upload> uploads, IProgressMonitor monitor) {
+		try {
+			for (Upload upload : uploads) {
+				add(upload, monitor).schedule();
+			}
+		} finally {
+			journal.sync();
+		}
+	}
+
+	/**
+	 * Queues an upload and records it in the journal without syncing it,
+	 * blocking while the queue is full.
+	 *
+	 * @param upload
+	 * @param monitor
+	 * @return the job that sends it
+	 */
+	private synchronized TargetJob add(Upload upload, IProgressMonitor monitor) {
+		String key = upload.getKey();
+		while (!queue.containsKey(key) && queue.size() >= capacity) {
+			if (monitor != null && monitor.isCanceled()) {
+				throw new OperationCanceledException();
+			}
+			// what is queued so far must not wait for the queue to drain
+			journal.sync();
+			try {
+				wait(WAIT_INTERVAL);
+			} catch (InterruptedException e) {
+				throw new OperationCanceledException();
+			}
+		}
+		queue.put(key, upload);
+		retries.remove(key);
+		retryTimes.remove(key);
+		// new content starts a new count of attempts
+		attempts.remove(key);
+		journal.add(upload, 0);
+		return getJob(upload.getTarget());
+	}
+
+	/**
+	 * Queues the deletion of a remote file. A queued upload of the same file
+	 * is dropped.
+	 *
+	 * @param target
+	 * @param remotePath
+	 *            the '/' separated path of the file relative to the remote
+	 *            directory
+	 */
+	public void delete(RemoteTarget target, String remotePath) {
+		enqueue(target, remotePath, RemoteChange.delete(remotePath));
+	}
+
+	/**
+	 * Queues the renaming of a remote file, after the local file has been
+	 * moved. A queued upload of the file under its old path is dropped; the
+	 * file is uploaded under its new path only if its content has changed.
+	 *
+	 * @param target
+	 * @param remotePath
+	 *            the '/' separated path of the file relative to the remote
+	 *            directory
+	 * @param newPath
+	 *            the '/' separated path to rename it to
+	 */
+	public void rename(RemoteTarget target, String remotePath, String newPath) {
+		enqueue(target, remotePath, RemoteChange.rename(remotePath, newPath));
+	}
+
+	private void enqueue(RemoteTarget target, String remotePath,
+			RemoteChange change) {
+		TargetJob job;
+		synchronized (this) {
+			String key = Upload.getKey(target, remotePath);
+			Upload dropped = queue.remove(key);
+			if (dropped == null) {
+				dropped = retries.remove(key);
+				retryTimes.remove(key);
+			}
+			if (dropped != null) {
+				attempts.remove(key);
+				journal.remove(dropped);
+				notifyAll();
+			}
+			List<RemoteChange> list = changes.get(target);
+			if (list == null) {
+				list = new ArrayList<RemoteChange>();
+				changes.put(target, list);
+			}
+			list.add(change);
+			job = getJob(target);
+		}
+		job.schedule();
+	}
+
+	private synchronized TargetJob getJob(RemoteTarget target) {
+		TargetJob job = jobs.get(target);
+		if (job == null) {
+			job = new TargetJob(target);
+			jobs.put(target, job);
+		}
+		return job;
+	}
+
+	/**
+	 * Returns the number of uploads waiting to be sent.
+	 *
+	 * @return
+	 */
+	public synchronized int getQueueDepth() {
+		return queue.size() + retries.size();
+	}
+
+	/**
+	 * Returns the number of uploads waiting to be sent to a remote target.
+	 *
+	 * @param target
+	 * @return
+	 */
+	public synchronized int getQueueDepth(RemoteTarget target) {
+		int depth = 0;
+		for (Upload upload : queue.values()) {
+			if (upload.getTarget().equals(target)) {
+				depth++;
+			}
+		}
+		for (Upload upload : retries.values()) {
+			if (upload.getTarget().equals(target)) {
+				depth++;
+			}
+		}
+		return depth;
+	}
+
+	/**
+	 * Returns the remote targets that uploads have been queued for since the
+	 * service started.
+	 *
+	 * @return
+	 */
+	public synchronized List<RemoteTarget> getTargets() {
+		return new ArrayList<RemoteTarget>(jobs.keySet());
+	}
+
+	/**
+	 * Returns the number of uploads sent successfully to a remote target
+	 * since the service started.
+	 *
+	 * @param target
+	 * @return
+	 */
+	public synchronized int getCompleted(RemoteTarget target) {
+		TargetJob job = jobs.get(target);
+		return job == null ? 0 : job.completed;
+	}
+
+	/**
+	 * Returns the number of uploads to a remote target that failed since the
+	 * service started.
+	 *
+	 * @param target
+	 * @return
+	 */
+	public synchronized int getFailed(RemoteTarget target) {
+		TargetJob job = jobs.get(target);
+		return job == null ? 0 : job.failed;
+	}
+
+	/**
+	 * Returns the result of the last run of the uploads to a remote target,
+	 * or null if none has finished.
+	 *
+	 * @param target
+	 * @return
+	 */
+	public IStatus getResult(RemoteTarget target) {
+		TargetJob job;
+		synchronized (this) {
+			job = jobs.get(target);
+		}
+		return job == null ? null : job.getResult();
+	}
+
+	/**
+	 * Returns the number of uploads currently being sent.
+	 *
+	 * @return
+	 */
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * Returns the number of uploads sent successfully since the service
+	 * started.
+	 *
+	 * @return
+	 */
+	public synchronized int getCompleted() {
+		return completed;
+	}
+
+	/**
+	 * Returns the number of uploads that failed since the service started.
+	 *
+	 * @return
+	 */
+	public synchronized int getFailed() {
+		return failed;
+	}
+
+	/**
+	 * Returns the number of uploads skipped since the service started because
+	 * the remote already had the content of the file.
+	 *
+	 * @return
+	 */
+	public synchronized int getSkipped() {
+		return skipped;
+	}
+
+	/**
+	 * Returns the number of uploads sent as deltas since the service started.
+	 *
+	 * @return
+	 */
+	public synchronized int getDeltas() {
+		return deltas;
+	}
+
+	/**
+	 * Returns the number of bytes not sent since the service started, thanks
+	 * to deltas.
+	 *
+	 * @return
+	 */
+	public synchronized long getBytesSaved() {
+		return bytesSaved;
+	}
+
+	@Override
+	public String toString() {
+		synchronized (this) {
+			StringBuffer buffer = new StringBuffer("UploadService[queued: "
+					+ queue.size() + ", retrying: " + retries.size()
+					+ ", in flight: " + inFlight
+					+ ", completed: " + completed + ", failed: " + failed
+					+ ", skipped: " + skipped + ", deltas: " + deltas
+					+ ", bytes saved: " + bytesSaved);
+			for (TargetJob job : jobs.values()) {
+				buffer.append(", " + job.target + ": " + job.completed
+						+ " completed, " + job.failed + " failed");
+			}
+			return buffer.append("]").toString();
+		}
+	}
+
+	/**
+	 * Sends the queued uploads for one remote target. Each target has its
+	 * own Job, so targets are sent to concurrently.
+	 */
+	private class TargetJob extends Job {
+
+		private final RemoteTarget target;
+		private int completed;
+		private int failed;
+		private int failedConnections;
+		private long retryAt;
+
+		TargetJob(RemoteTarget target) {
+			super("Uploading to " + target);
+			this.target = target;
+			setPriority(LONG);
+		}
+
+		@Override
+		protected IStatus run(IProgressMonitor monitor) {
+			MultiStatus result = new MultiStatus(Activator.PLUGIN_ID, 0,
+					"Failed to upload files to " + target + ".", null);
+			while (true) {
+				List<RemoteChange> changeBatch = takeChanges(target);
+				List<Upload> batch = take(target);
+				if (changeBatch.isEmpty() && batch.isEmpty()) {
+					break;
+				}
+				SubMonitor progress = SubMonitor.convert(monitor, "Uploading "
+						+ batch.size() + " files to " + target, batch.size()
+						+ 1);
+				if (progress.isCanceled()) {
+					requeueChanges(target, changeBatch);
+					requeue(batch);
+					return Status.CANCEL_STATUS;
+				}
+				// deletes and renames first, the uploads may depend on them
+				if (!changeBatch.isEmpty()) {
+					change(target, changeBatch, result);
+				}
+				progress.worked(1);
+				if (batch.isEmpty()) {
+					continue;
+				}
+				MultiStatus batchResult = new MultiStatus(Activator.PLUGIN_ID,
+						0, "Failed to upload files to " + target + ".", null);
+				Set<Upload> failures = send(target, batch, batchResult);
+				finished(this, batch, failures, batchResult, result);
+				// outside the lock of the service, which builders queue under
+				journal.sync();
+				progress.worked(batch.size());
+			}
+
+			long delay = getRetryDelay(this);
+			if (delay > 0) {
+				schedule(delay);
+			}
+			return result.isOK() ? Status.OK_STATUS : result;
+		}
+	}
+
+	/**
+	 * Deletes and renames files on one remote target, and updates its
+	 * manifest and basis cache to match. If the changes fail the files
+	 * involved are forgotten, so that they are sent in full by their next
+	 * upload.
+	 *
+	 * @param target
+	 * @param changeBatch
+	 * @param result
+	 *            receives the failure
+	 */
+	private void change(RemoteTarget target, List<RemoteChange> changeBatch,
+			MultiStatus result) {
+		UploadManifest manifest = UploadManifest.getManifest(target);
+		BasisCache basisCache = new BasisCache(target);
+		Scp scp = createScp(target, new ArrayList<Upload>());
+		try {
+			List<RemoteChange> missing = scp.change(changeBatch);
+			for (RemoteChange change : changeBatch) {
+				if (change.isDelete()) {
+					manifest.forget(change.getRemotePath());
+					basisCache.remove(change.getRemotePath());
+				} else if (missing.contains(change)) {
+					// nothing was moved, the file is sent to its new path
+					manifest.forget(change.getRemotePath());
+					basisCache.remove(change.getRemotePath());
+					manifest.forget(change.getNewPath());
+					basisCache.remove(change.getNewPath());
+				} else {
+					manifest.rename(change.getRemotePath(), change.getNewPath());
+					basisCache.rename(change.getRemotePath(), change
+							.getNewPath());
+				}
+			}
+			Activator.trace("Deleted or renamed " + changeBatch.size()
+					+ " files on " + target);
+		} catch (RuntimeException e) {
+			for (RemoteChange change : changeBatch) {
+				manifest.forget(change.getRemotePath());
+				basisCache.remove(change.getRemotePath());
+				if (!change.isDelete()) {
+					manifest.forget(change.getNewPath());
+					basisCache.remove(change.getNewPath());
+				}
+			}
+			result.add(new Status(IStatus.WARNING, Activator.PLUGIN_ID,
+					"Failed to delete or rename files on " + target, e));
+		}
+		manifest.save();
+	}
+
+	/**
+	 * Sends a batch of uploads to one remote target. Files the target already
+	 * has are skipped, large files the target has an earlier version of are
+	 * sent as deltas and the rest are sent in full.
+	 *
+	 * @param target
+	 * @param uploads
+	 * @param result
+	 *            receives the failures
+	 * @return the uploads that failed
+	 */
+	private Set<Upload> send(RemoteTarget target, List<Upload> uploads,
+			MultiStatus result) {
+		UploadManifest manifest = UploadManifest.getManifest(target);
+		Map<Upload, UploadManifest.Entry> changed = new LinkedHashMap<Upload, UploadManifest.Entry>();
+		for (Upload upload : uploads) {
+			UploadManifest.Entry state = manifest.check(upload.getRemotePath(),
+					upload.getLocalFile(), upload.getContent());
+			if (state != null) {
+				changed.put(upload, state);
+			}
+		}
+		skipped(uploads.size() - changed.size());
+
+		BasisCache basisCache = new BasisCache(target);
+		sendDeltas(target, manifest, basisCache, changed);
+		if (changed.isEmpty()) {
+			manifest.save();
+			return new HashSet<Upload>();
+		}
+
+		Scp scp = createScp(target, changed.keySet());
+		boolean ok = true;
+		try {
+			scp.execute();
+		} catch (RuntimeException e) {
+			ok = false;
+			result.add(new Status(IStatus.ERROR, Activator.PLUGIN_ID,
+					"Failed to upload to " + target, e));
+		}
+		// a transfer that failed without reporting any file could not reach
+		// the target, a file that failed is retried on its own
+		connected(target, ok || !scp.getFailures().isEmpty());
+		if (scp.getTransferTime() > 0) {
+			Activator.trace("Sent " + scp.getBytesSent() + " bytes to "
+					+ target + " in " + scp.getTransferTime() + " ms, "
+					+ scp.getBytesSent() * 1000 / 1024 / scp.getTransferTime()
+					+ " KB/s per channel");
+		}
+
+		// a file that failed does not fail the rest of the batch
+		Set<String> failures = getFailedPaths(scp, changed.keySet(), ok);
+		Set<Upload> failed = new HashSet<Upload>();
+		for (Map.Entry<Upload, UploadManifest.Entry> sent : changed.entrySet()) {
+			Upload upload = sent.getKey();
+			String remotePath = upload.getRemotePath();
+			if (failures.contains(remotePath)) {
+				manifest.forget(remotePath);
+				basisCache.remove(remotePath);
+				failed.add(upload);
+			} else {
+				manifest.record(remotePath, sent.getValue());
+				updateBasis(basisCache, upload, sent.getValue());
+			}
+		}
+		manifest.save();
+		finished(target, changed.size() - failures.size(), failures.size());
+		return failed;
+	}
+
+	/**
+	 * Sends as deltas the large files for which the target has an earlier
+	 * version that is also in the basis cache. The files sent are removed
+	 * from the map; the others are left to be sent in full.
+	 *
+	 * @param target
+	 * @param manifest
+	 * @param basisCache
+	 * @param changed
+	 */
+	private void sendDeltas(RemoteTarget target, UploadManifest manifest,
+			BasisCache basisCache, Map<Upload, UploadManifest.Entry> changed) {
+		Scp scp = null;
+		for (Iterator<Upload> i = changed.keySet().iterator(); i.hasNext();) {
+			Upload upload = i.next();
+			String remotePath = upload.getRemotePath();
+			UploadManifest.Entry previous = manifest.getEntry(remotePath);
+			long size = upload.getContent() != null ? upload.getContent().length
+					: upload.getLocalFile().length();
+			if (previous == null || size < DELTA_MIN_SIZE
+					|| size > DELTA_MAX_SIZE) {
+				continue;
+			}
+			byte[] basis = basisCache.get(remotePath);
+			if (basis == null
+					|| !Fingerprint.of(basis).equals(previous.getFingerprint())) {
+				continue;
+			}
+
+			try {
+				byte[] content = upload.read();
+				if (scp == null) {
+					scp = createScp(target, new ArrayList<Upload>());
+				}
+				long saved = scp.sendDelta(basis, content, remotePath);
+				if (saved >= 0) {
+					manifest.record(remotePath, new UploadManifest.Entry(
+							content.length, upload.getLocalFile()
+									.lastModified(), Fingerprint.of(content)));
+					basisCache.put(remotePath, content);
+					i.remove();
+					delta(target, saved);
+					Activator.trace("Sent " + remotePath + " to " + target
+							+ " as a delta, saving " + saved + " of "
+							+ content.length + " bytes");
+				}
+			} catch (IOException e) {
+				// send it in full
+			} catch (RuntimeException e) {
+				// send it in full
+				Activator.trace("Delta to " + target + " failed: "
+						+ e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Caches the content just sent for a large file, so the next upload can
+	 * be a delta against it. If the file changed since it was checked the
+	 * cache entry is dropped instead.
+	 *
+	 * @param basisCache
+	 * @param upload
+	 * @param sent
+	 */
+	private void updateBasis(BasisCache basisCache, Upload upload,
+			UploadManifest.Entry sent) {
+		String remotePath = upload.getRemotePath();
+		if (sent.getSize() < DELTA_MIN_SIZE || sent.getSize() > DELTA_MAX_SIZE) {
+			basisCache.remove(remotePath);
+			return;
+		}
+		try {
+			byte[] content = upload.read();
+			if (Fingerprint.of(content).equals(sent.getFingerprint())) {
+				basisCache.put(remotePath, content);
+				return;
+			}
+		} catch (IOException e) {
+		}
+		basisCache.remove(remotePath);
+	}
+
+	/**
+	 * Creates the scp task that sends a batch of uploads to one remote
+	 * directory, over as many channels of one session as configured. A batch
+	 * of at least the configured threshold of files is sent as a single tar
+	 * stream instead, which saves a round trip per file.
+	 *
+	 * @param target
+	 * @param uploads
+	 * @return
+	 */
+	private Scp createScp(RemoteTarget target, Collection<Upload> uploads) {
+		Scp scp = new Scp();
+		scp.setTodir(target.getUri());
+		scp.setKeyfile(target.getKeyfile());
+		for (Upload upload : uploads) {
+			scp.addTransfer(new Transfer(upload.getLocalFile(), upload
+					.getContent(), upload.getRemotePath()));
+		}
+		scp.setTrust(true);
+		scp.setTimeout(SCP_TIMEOUT);
+		scp.setSessionPool(SessionPool.getDefault());
+		scp.setLogListener(TRACE);
+		IPreferenceStore store = Activator.getDefault().getPreferenceStore();
+		scp.setChannels(store.getInt(PreferenceConstants.UPLOAD_CHANNELS));
+		scp.setSftp(target.isSftp());
+		// the manifest has decided what to send, a size and time in whole
+		// seconds is no reason to skip a file it found changed
+		scp.setSkipExisting(false);
+		scp.setChunkSize(store.getInt(PreferenceConstants.UPLOAD_CHUNK_SIZE)
+				* 1024);
+		int tarThreshold = store.getInt(PreferenceConstants.TAR_THRESHOLD);
+		scp.setTarMode(tarThreshold > 0 && uploads.size() >= tarThreshold);
+		scp.setCompress(store.getBoolean(PreferenceConstants.TAR_COMPRESS));
+		return scp;
+	}
+
+	/**
+	 * Returns the remote paths of the uploads that were not sent by an scp
+	 * task that has been executed. If the task failed without reporting
+	 * individual files none of the uploads were sent.
+	 *
+	 * @param scp
+	 * @param uploads
+	 * @param ok
+	 *            false if the task threw an exception
+	 * @return
+	 */
+	private Set<String> getFailedPaths(Scp scp, Collection<Upload> uploads,
+			boolean ok) {
+		Set<String> failures = new HashSet<String>();
+		if (scp.getFailures().isEmpty()) {
+			if (!ok) {
+				for (Upload upload : uploads) {
+					failures.add(upload.getRemotePath());
+				}
+			}
+		} else {
+			for (Transfer transfer : scp.getFailures().keySet()) {
+				failures.add(transfer.getRemotePath());
+			}
+		}
+		return failures;
+	}
+
+	/**
+	 * Removes every queued upload for a remote target, and every failed one
+	 * that is due to be retried, marking them as in flight, unless the target
+	 * is backing off after a failed connection.
+	 *
+	 * @param target
+	 * @return
+	 */
+	private synchronized List<Upload> take(RemoteTarget target) {
+		List<Upload> batch = new ArrayList<Upload>();
+		if (isBackingOff(target)) {
+			return batch;
+		}
+		for (Iterator<Upload> i = queue.values().iterator(); i.hasNext();) {
+			Upload upload = i.next();
+			if (upload.getTarget().equals(target)) {
+				batch.add(upload);
+				i.remove();
+			}
+		}
+		long now = System.currentTimeMillis();
+		for (Iterator<Upload> i = retries.values().iterator(); i.hasNext();) {
+			Upload upload = i.next();
+			Long time = retryTimes.get(upload.getKey());
+			if (upload.getTarget().equals(target)
+					&& (time == null || time.longValue() <= now)) {
+				batch.add(upload);
+				i.remove();
+				retryTimes.remove(upload.getKey());
+			}
+		}
+		inFlight += batch.size();
+		notifyAll();
+		return batch;
+	}
+
+	/**
+	 * Removes the deletes and renames queued for a remote target, unless the
+	 * target is backing off after a failure.
+	 *
+	 * @param target
+	 * @return
+	 */
+	private synchronized List<RemoteChange> takeChanges(RemoteTarget target) {
+		List<RemoteChange> list = changes.get(target);
+		if (list == null || isBackingOff(target)) {
+			return new ArrayList<RemoteChange>();
+		}
+		changes.remove(target);
+		return list;
+	}
+
+	/**
+	 * Puts back deletes and renames that were taken but not made, before any
+	 * queued since.
+	 *
+	 * @param target
+	 * @param changeBatch
+	 */
+	private synchronized void requeueChanges(RemoteTarget target,
+			List<RemoteChange> changeBatch) {
+		if (changeBatch.isEmpty()) {
+			return;
+		}
+		List<RemoteChange> list = changes.get(target);
+		if (list != null) {
+			changeBatch.addAll(list);
+		}
+		changes.put(target, changeBatch);
+	}
+
+	private synchronized boolean isBackingOff(RemoteTarget target) {
+		return jobs.get(target).retryAt > System.currentTimeMillis();
+	}
+
+	/**
+	 * Records whether a transfer could connect to a remote target. After a
+	 * failed connection nothing is sent to the target until a delay that
+	 * grows with each failed connection.
+	 *
+	 * @param target
+	 * @param connected
+	 */
+	private synchronized void connected(RemoteTarget target, boolean connected) {
+		TargetJob job = jobs.get(target);
+		if (connected) {
+			job.failedConnections = 0;
+			job.retryAt = 0;
+		} else {
+			long delay = getDelay(job.failedConnections);
+			job.failedConnections++;
+			job.retryAt = System.currentTimeMillis() + delay;
+			Activator.trace("Cannot reach " + target + ", retrying in "
+					+ delay + " ms");
+		}
+	}
+
+	/**
+	 * Returns the delay before the next retry after the given number of
+	 * earlier failures.
+	 *
+	 * @param failures
+	 * @return
+	 */
+	private static long getDelay(int failures) {
+		return Math.min(MAX_RETRY_DELAY, RETRY_DELAY << Math.min(failures, 30));
+	}
+
+	/**
+	 * Puts back uploads that were taken but not sent, unless the same remote
+	 * file has been queued again since.
+	 *
+	 * @param uploads
+	 */
+	private synchronized void requeue(List<Upload> uploads) {
+		inFlight -= uploads.size();
+		for (Upload upload : uploads) {
+			if (!queue.containsKey(upload.getKey())
+					&& !retries.containsKey(upload.getKey())) {
+				queue.put(upload.getKey(), upload);
+			}
+		}
+	}
+
+	/**
+	 * Removes the uploads of a batch that were sent from the journal, and
+	 * keeps those that failed to be retried after a delay that grows with
+	 * each failed attempt of the upload. An upload that has failed too often
+	 * is given up on and reported; until then failures are only traced, since
+	 * they are usually the network or the remote host being briefly
+	 * unavailable.
+	 *
+	 * @param job
+	 * @param batch
+	 * @param failures
+	 * @param batchResult
+	 *            the failures of the batch
+	 * @param result
+	 *            receives the failures of the uploads given up on
+	 */
+	private synchronized void finished(TargetJob job, List<Upload> batch,
+			Set<Upload> failures, MultiStatus batchResult, MultiStatus result) {
+		List<Upload> abandoned = new ArrayList<Upload>();
+		long now = System.currentTimeMillis();
+		for (Upload upload : batch) {
+			String key = upload.getKey();
+			if (queue.containsKey(key)) {
+				// queued again since, the journal has the newer request
+				continue;
+			}
+			if (!failures.contains(upload)) {
+				attempts.remove(key);
+				journal.remove(upload);
+				continue;
+			}
+			Integer previous = attempts.get(key);
+			int count = previous == null ? 1 : previous + 1;
+			if (count >= MAX_ATTEMPTS) {
+				attempts.remove(key);
+				journal.remove(upload);
+				abandoned.add(upload);
+			} else {
+				// waiting uploads do not count against the capacity
+				retries.put(key, upload);
+				retryTimes.put(key, now + getDelay(count - 1));
+				attempts.put(key, count);
+				journal.add(upload, count);
+			}
+		}
+
+		if (failures.size() > abandoned.size()) {
+			Activator.trace("Retrying " + (failures.size() - abandoned.size())
+					+ " uploads to " + job.target);
+		}
+
+		if (!abandoned.isEmpty()) {
+			result.addAll(batchResult);
+			result.add(new Status(IStatus.ERROR, Activator.PLUGIN_ID,
+					"Gave up uploading " + abandoned.size() + " files to "
+							+ job.target + " after " + MAX_ATTEMPTS
+							+ " attempts, first " + abandoned.get(0)));
+		}
+	}
+
+	/**
+	 * Returns how long a target's job must wait before retrying the uploads
+	 * and changes queued for it, or 0 if it does not need to run again.
+	 *
+	 * @param job
+	 * @return
+	 */
+	private synchronized long getRetryDelay(TargetJob job) {
+		long next = Long.MAX_VALUE;
+		if (changes.containsKey(job.target)) {
+			next = job.retryAt;
+		}
+		for (Upload upload : queue.values()) {
+			if (upload.getTarget().equals(job.target)) {
+				next = job.retryAt;
+				break;
+			}
+		}
+		for (Upload upload : retries.values()) {
+			if (upload.getTarget().equals(job.target)) {
+				Long time = retryTimes.get(upload.getKey());
+				next = Math.min(next, time == null ? 0 : time.longValue());
+			}
+		}
+		if (next == Long.MAX_VALUE) {
+			return 0;
+		}
+		// nothing is sent while the target is backing off
+		next = Math.max(next, job.retryAt);
+		return Math.max(1, next - System.currentTimeMillis());
+	}
+
+	private synchronized void delta(RemoteTarget target, long saved) {
+		inFlight--;
+		completed++;
+		jobs.get(target).completed++;
+		deltas++;
+		bytesSaved += saved;
+	}
+
+	private synchronized void skipped(int count) {
+		inFlight -= count;
+		skipped += count;
+	}
+
+	private synchronized void finished(RemoteTarget target, int sent,
+			int notSent) {
+		inFlight -= sent + notSent;
+		completed += sent;
+		failed += notSent;
+		jobs.get(target).completed += sent;
+		jobs.get(target).failed += notSent;
+	}
+}
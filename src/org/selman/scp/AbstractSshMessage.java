@@ -26,6 +26,7 @@ import java.io.OutputStream;
 
 import com.jcraft.jsch.Channel;
 import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.ChannelSftp;
 import com.jcraft.jsch.JSchException;
 import com.jcraft.jsch.Session;
 
@@ -34,7 +35,11 @@ import com.jcraft.jsch.Session;
  */
 public abstract class AbstractSshMessage {
 
+    /** How often in milliseconds to check whether a remote command exited */
+    private static final long POLL_INTERVAL = 20;
+
     private Session session;
+    private int timeout;
     private LogListener listener = new LogListener() {
         public void log(String message) {
             // do nothing;
@@ -49,6 +54,31 @@ public abstract class AbstractSshMessage {
         this.session = session;
     }
 
+    /**
+     * Sets the timeout used when connecting channels.
+     * @param timeout timeout in milliseconds, 0 means wait forever
+     */
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Sets the listener that receives the log messages of this message,
+     * such as the throughput of each file sent.
+     * @param aListener the listener
+     */
+    public void setLogListener(LogListener aListener) {
+        this.listener = aListener;
+    }
+
+    /**
+     * Get the timeout used when connecting channels.
+     * @return the timeout in milliseconds
+     */
+    public int getTimeout() {
+        return timeout;
+    }
+
     /**
      * Open an ssh channel.
      * @param command the command to use
@@ -62,6 +92,66 @@ public abstract class AbstractSshMessage {
         return channel;
     }
 
+    /**
+     * Open an ssh sftp channel.
+     * @return the channel
+     * @throws JSchException on error
+     */
+    protected ChannelSftp openSftpChannel() throws JSchException {
+        ChannelSftp channel = (ChannelSftp) session.openChannel("sftp");
+
+        return channel;
+    }
+
+    /**
+     * Quotes an argument for the remote shell.
+     * @param arg the argument
+     * @return the argument in single quotes
+     */
+    protected static String quote(String arg) {
+        return "'" + arg.replaceAll("'", "'\\\\''") + "'";
+    }
+
+    /**
+     * Quotes a remote path for the remote shell. Every command that names a
+     * remote path quotes it with this, so that they all agree on where it
+     * is: a leading "~" is the home directory of the user and the rest of
+     * the path is taken literally, spaces included.
+     * @param path the remote path
+     * @return the path quoted for the remote shell
+     */
+    protected static String quotePath(String path) {
+        if (path.equals("~")) {
+            return "\"$HOME\"";
+        }
+        if (path.startsWith("~/")) {
+            return "\"$HOME\"/" + quote(path.substring(2));
+        }
+        return quote(path);
+    }
+
+    /**
+     * Wait for the remote command of a channel to exit.
+     * @param channel the connected channel
+     * @return the exit status of the remote command
+     * @throws ScpException if the command does not exit within the timeout
+     */
+    protected int waitForExit(Channel channel) throws ScpException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!channel.isClosed()) {
+            if (timeout > 0 && System.currentTimeMillis() > deadline) {
+                throw new ScpException("timed out waiting for remote command");
+            }
+            try {
+                Thread.sleep(POLL_INTERVAL);
+            } catch (InterruptedException e) {
+                throw new ScpException("interrupted waiting for remote command",
+                                       e);
+            }
+        }
+        return channel.getExitStatus();
+    }
+
     /**
      * Send an ack.
      * @param out the output stream to use
@@ -0,0 +1,181 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Daniel Selman}.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Daniel Selman - initial API and implementation and/or initial documentation
+ *******************************************************************************/
+package org.selman.scp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+
+import com.jcraft.jsch.Channel;
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+/**
+ * Deletes and renames files in a remote directory with a single shell
+ * command, so that any number of changes costs one round trip. The changes
+ * are made in order; consecutive deletes share one "rm". A file to delete or
+ * rename that does not exist is ignored, but the renames skipped that way
+ * are reported, since nothing is then at their new path. A failed change
+ * does not stop the ones after it, but makes the command fail, as does a
+ * remote directory that does not exist.
+ */
+public class ChangeMessage extends AbstractSshMessage {
+
+    /**
+     * Changes are split over several commands rather than let one grow past
+     * this many characters, well below the limits of common servers.
+     */
+    private static final int MAX_COMMAND_LENGTH = 32 * 1024;
+
+    private static final String END = "exit $s";
+
+    private final List<RemoteChange> changes;
+    private final String remotePath;
+    private final List<RemoteChange> missing = new ArrayList<RemoteChange>();
+
+    /**
+     * Constructor for ChangeMessage
+     * @param session the ssh session to use
+     * @param aChanges the changes to make, in order
+     * @param aRemotePath the remote directory the paths are relative to
+     */
+    public ChangeMessage(Session session,
+                         List<RemoteChange> aChanges,
+                         String aRemotePath) {
+        super(session);
+        this.changes = aChanges;
+        this.remotePath = aRemotePath;
+    }
+
+    /**
+     * Make the changes.
+     * @throws IOException on i/o errors
+     * @throws JSchException on ssh errors
+     */
+    public void execute() throws IOException, JSchException {
+        missing.clear();
+        for (String script : getScripts()) {
+            // run by sh whatever the login shell of the user is
+            run("sh -c " + quote(script));
+        }
+        log("done.\n");
+    }
+
+    /**
+     * Get the renames that were not made because the file did not exist.
+     * @return the renames skipped
+     */
+    public List<RemoteChange> getMissing() {
+        return missing;
+    }
+
+    private void run(String cmd) throws IOException, JSchException {
+        Channel channel = openExecChannel(cmd);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        channel.setOutputStream(out);
+        ((ChannelExec) channel).setErrStream(err);
+        try {
+            channel.connect(getTimeout());
+            int status = waitForExit(channel);
+            // the script prints the index of each rename it skipped
+            StringTokenizer skipped = new StringTokenizer(out.toString());
+            while (skipped.hasMoreTokens()) {
+                try {
+                    missing.add(changes.get(Integer.parseInt(skipped
+                        .nextToken())));
+                } catch (NumberFormatException e) {
+                    // not ours
+                } catch (IndexOutOfBoundsException e) {
+                    // not ours
+                }
+            }
+            if (status != 0) {
+                throw new ScpException("remote changes failed with status "
+                                       + status + ": "
+                                       + err.toString().trim());
+            }
+        } finally {
+            if (channel != null) {
+                channel.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Builds the shell scripts that make the changes, each short enough to
+     * be sent as one command.
+     */
+    private List<String> getScripts() {
+        List<String> scripts = new ArrayList<String>();
+        // the changes cannot be made if the directory does not exist
+        String start = "s=0; cd " + quotePath(remotePath) + " || exit 2; ";
+
+        StringBuffer script = new StringBuffer(start);
+        StringBuffer rm = new StringBuffer();
+        for (int i = 0; i < changes.size(); i++) {
+            RemoteChange change = changes.get(i);
+            if (change.isDelete()) {
+                String arg = " " + quote(change.getRemotePath());
+                if (rm.length() == 0 || script.length() + rm.length()
+                    + arg.length() > MAX_COMMAND_LENGTH) {
+                    script = flush(scripts, script, rm, start);
+                    rm.append("rm -f --");
+                }
+                rm.append(arg);
+                continue;
+            }
+            String from = quote(change.getRemotePath());
+            String parent = RemoteDirectories.getParent(change.getNewPath());
+            String step = "if [ -e " + from + " ]; then "
+                + (parent.length() == 0 ? ""
+                   : "mkdir -p -- " + quote(parent) + " && ")
+                + "mv -f -- " + from + " " + quote(change.getNewPath())
+                + " || s=1; else echo " + i + "; fi; ";
+            script = flush(scripts, script, rm, start);
+            if (script.length() + step.length() > MAX_COMMAND_LENGTH
+                && script.length() > start.length()) {
+                scripts.add(script.append(END).toString());
+                script = new StringBuffer(start);
+            }
+            script.append(step);
+        }
+        script = flush(scripts, script, rm, start);
+        if (script.length() > start.length()) {
+            scripts.add(script.append(END).toString());
+        }
+        return scripts;
+    }
+
+    /**
+     * Adds a pending "rm" to a script, first ending the script if the rm
+     * would make it too long.
+     * @return the script to continue with
+     */
+    private static StringBuffer flush(List<String> scripts,
+                                      StringBuffer script, StringBuffer rm,
+                                      String start) {
+        if (rm.length() == 0) {
+            return script;
+        }
+        if (script.length() + rm.length() > MAX_COMMAND_LENGTH
+            && script.length() > start.length()) {
+            scripts.add(script.append(END).toString());
+            script = new StringBuffer(start);
+        }
+        script.append(rm).append(" || s=1; ");
+        rm.setLength(0);
+        return script;
+    }
+}
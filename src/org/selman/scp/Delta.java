@@ -0,0 +1,220 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Daniel Selman}.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Daniel Selman - initial API and implementation and/or initial documentation
+ *******************************************************************************/
+package org.selman.scp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An rsync style delta between the copy of a file the remote host already
+ * has (the basis) and its new content. The basis is split into fixed size
+ * blocks, the new content is scanned with a rolling checksum for those
+ * blocks, and the delta is encoded as runs of basis blocks to copy and
+ * literal bytes to insert.
+ * <p>
+ * Unlike rsync both copies are local, so candidate blocks are confirmed by
+ * comparing their bytes rather than with a strong checksum.
+ * <p>
+ * The encoding is:
+ * <pre>
+ * "JSD1" blockSize:int32 sha1(basis):20
+ * ( 'C' firstBlock:int32 blockCount:int32 | 'L' length:int32 bytes )*
+ * 'E' sha1(content):20
+ * </pre>
+ */
+public class Delta {
+
+    private static final byte[] MAGIC = {'J', 'S', 'D', '1'};
+
+    private static final int MIN_BLOCK_SIZE = 512;
+
+    private static final int MAX_BLOCK_SIZE = 64 * 1024;
+
+    private final byte[] encoded;
+    private final int contentLength;
+
+    private Delta(byte[] encoded, int contentLength) {
+        this.encoded = encoded;
+        this.contentLength = contentLength;
+    }
+
+    /**
+     * Computes the delta from a basis to new content.
+     * @param basis the content the remote host has
+     * @param content the new content
+     * @return the delta
+     */
+    public static Delta compute(byte[] basis, byte[] content) {
+        int blockSize = getBlockSize(basis.length);
+        int blocks = basis.length / blockSize;
+
+        Map<Integer, List<Integer>> index = new HashMap<Integer, List<Integer>>();
+        for (int block = 0; block < blocks; block++) {
+            int weak = checksum(basis, block * blockSize, blockSize);
+            List<Integer> list = index.get(weak);
+            if (list == null) {
+                list = new ArrayList<Integer>(1);
+                index.put(weak, list);
+            }
+            list.add(block);
+        }
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.write(MAGIC);
+            out.writeInt(blockSize);
+            out.write(sha1(basis));
+
+            int literal = 0;
+            int runStart = -1;
+            int runLength = 0;
+            int pos = 0;
+            int a = 0;
+            int b = 0;
+            boolean rolling = false;
+            while (pos + blockSize <= content.length && blocks > 0) {
+                if (!rolling) {
+                    a = 0;
+                    b = 0;
+                    for (int n = 0; n < blockSize; n++) {
+                        a += content[pos + n] & 0xff;
+                        b += (blockSize - n) * (content[pos + n] & 0xff);
+                    }
+                    rolling = true;
+                }
+
+                int match = find(index.get((b & 0xffff) << 16 | (a & 0xffff)),
+                                 basis, blockSize, content, pos);
+                if (match >= 0) {
+                    if (literal < pos) {
+                        writeRun(out, runStart, runLength);
+                        runLength = 0;
+                        writeLiteral(out, content, literal, pos - literal);
+                    }
+                    if (runLength > 0 && runStart + runLength == match) {
+                        runLength++;
+                    } else {
+                        writeRun(out, runStart, runLength);
+                        runStart = match;
+                        runLength = 1;
+                    }
+                    pos += blockSize;
+                    literal = pos;
+                    rolling = false;
+                } else {
+                    if (pos + blockSize < content.length) {
+                        int out1 = content[pos] & 0xff;
+                        int in1 = content[pos + blockSize] & 0xff;
+                        a += in1 - out1;
+                        b += a - blockSize * out1;
+                    }
+                    pos++;
+                }
+            }
+            if (literal < content.length) {
+                writeRun(out, runStart, runLength);
+                runLength = 0;
+                writeLiteral(out, content, literal, content.length - literal);
+            }
+            writeRun(out, runStart, runLength);
+
+            out.writeByte('E');
+            out.write(sha1(content));
+            out.flush();
+            return new Delta(bytes.toByteArray(), content.length);
+        } catch (IOException e) {
+            // cannot happen writing to memory
+            throw new ScpException(e);
+        }
+    }
+
+    /**
+     * Get the encoded delta.
+     * @return the encoded delta
+     */
+    public byte[] getEncoded() {
+        return encoded;
+    }
+
+    /**
+     * Get the number of bytes the delta saves over sending the whole file.
+     * @return the number of bytes saved, negative if the delta is larger
+     */
+    public long getBytesSaved() {
+        return (long) contentLength - encoded.length;
+    }
+
+    private static int getBlockSize(int length) {
+        int size = (int) Math.sqrt(length) & ~63;
+        return Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size));
+    }
+
+    private static int checksum(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int n = 0; n < length; n++) {
+            a += data[offset + n] & 0xff;
+            b += (length - n) * (data[offset + n] & 0xff);
+        }
+        return (b & 0xffff) << 16 | (a & 0xffff);
+    }
+
+    private static int find(List<Integer> candidates, byte[] basis,
+                            int blockSize, byte[] content, int pos) {
+        if (candidates == null) {
+            return -1;
+        }
+        for (int block : candidates) {
+            int offset = block * blockSize;
+            int n = 0;
+            while (n < blockSize && basis[offset + n] == content[pos + n]) {
+                n++;
+            }
+            if (n == blockSize) {
+                return block;
+            }
+        }
+        return -1;
+    }
+
+    private static void writeRun(DataOutputStream out, int start, int length)
+        throws IOException {
+        if (length > 0) {
+            out.writeByte('C');
+            out.writeInt(start);
+            out.writeInt(length);
+        }
+    }
+
+    private static void writeLiteral(DataOutputStream out, byte[] content,
+                                     int offset, int length)
+        throws IOException {
+        out.writeByte('L');
+        out.writeInt(length);
+        out.write(content, offset, length);
+    }
+
+    private static byte[] sha1(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new ScpException(e);
+        }
+    }
+}
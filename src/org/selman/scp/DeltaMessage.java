@@ -0,0 +1,143 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Daniel Selman}.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Daniel Selman - initial API and implementation and/or initial documentation
+ *******************************************************************************/
+package org.selman.scp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.jcraft.jsch.Channel;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+/**
+ * Applies a {@link Delta} to a remote file. The delta is piped into a small
+ * python helper, run with an exec channel, that rebuilds the file from its
+ * current content, checks the result against the checksum in the delta and
+ * only then replaces the file.
+ * <p>
+ * The helper refuses the delta if the remote file is not the basis the delta
+ * was computed from. In that case, or if python is not installed, the
+ * message reports that the delta was not applied and the file should be sent
+ * in full.
+ */
+public class DeltaMessage extends AbstractSshMessage {
+
+    /**
+     * The remote helper, passed to "python -c". It must not contain single
+     * quotes. Exit codes: 3 the remote file is not the basis, 4 the delta
+     * is malformed, 5 the result does not match its checksum.
+     */
+    private static final String[] HELPER = {
+        "import sys,os,hashlib,struct",
+        "i=getattr(sys.stdin,\"buffer\",sys.stdin)",
+        "def rd(n):",
+        " b=i.read(n)",
+        " if len(b)!=n: sys.exit(4)",
+        " return b",
+        "p=sys.argv[1]",
+        "m,bs=struct.unpack(\">4sI\",rd(8))",
+        "if m!=b\"JSD1\": sys.exit(4)",
+        "base=rd(20)",
+        "try: old=open(p,\"rb\").read()",
+        "except IOError: sys.exit(3)",
+        "if hashlib.sha1(old).digest()!=base: sys.exit(3)",
+        "t=p+\".jsdelta\"",
+        "o=open(t,\"wb\")",
+        "h=hashlib.sha1()",
+        "while 1:",
+        " c=rd(1)",
+        " if c==b\"C\":",
+        "  s,n=struct.unpack(\">II\",rd(8))",
+        "  d=old[s*bs:(s+n)*bs]",
+        " elif c==b\"L\":",
+        "  n,=struct.unpack(\">I\",rd(4))",
+        "  d=rd(n)",
+        " else: break",
+        " o.write(d)",
+        " h.update(d)",
+        "o.close()",
+        "if c!=b\"E\" or h.digest()!=rd(20):",
+        " os.remove(t)",
+        " sys.exit(5)",
+        "os.rename(t,p)"
+    };
+
+    private final Delta delta;
+    private final String remotePath;
+    private boolean applied;
+    private int exitStatus = -1;
+
+    /**
+     * Constructor for DeltaMessage
+     * @param session the ssh session to use
+     * @param delta the delta to apply
+     * @param remotePath the remote file to apply it to
+     */
+    public DeltaMessage(Session session, Delta delta, String remotePath) {
+        super(session);
+        this.delta = delta;
+        this.remotePath = remotePath;
+    }
+
+    /**
+     * Carry out the transfer.
+     * @throws IOException on i/o errors
+     * @throws JSchException on ssh errors
+     */
+    public void execute() throws IOException, JSchException {
+        StringBuffer script = new StringBuffer();
+        for (String line : HELPER) {
+            script.append(line).append('\n');
+        }
+        String cmd = "python -c '" + script + "' " + quotePath(remotePath);
+        Channel channel = openExecChannel(cmd);
+        try {
+            OutputStream out = channel.getOutputStream();
+            channel.connect(getTimeout());
+            out.write(delta.getEncoded());
+            out.flush();
+            out.close();
+
+            exitStatus = waitForExit(channel);
+            applied = exitStatus == 0;
+            log("delta " + (applied ? "applied" : "refused, status "
+                            + exitStatus) + "\n");
+        } finally {
+            if (channel != null) {
+                channel.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Returns true if the remote file was updated.
+     * @return true if the delta was applied
+     */
+    public boolean isApplied() {
+        return applied;
+    }
+
+    /**
+     * Get the exit status of the remote helper.
+     * @return the exit status, 127 if python is not installed
+     */
+    public int getExitStatus() {
+        return exitStatus;
+    }
+
+    /**
+     * Get the delta
+     * @return the delta
+     */
+    public Delta getDelta() {
+        return delta;
+    }
+}
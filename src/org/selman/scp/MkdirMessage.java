@@ -0,0 +1,70 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Daniel Selman}.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Daniel Selman - initial API and implementation and/or initial documentation
+ *******************************************************************************/
+package org.selman.scp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+
+import com.jcraft.jsch.Channel;
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+/**
+ * Creates remote directories, and any missing parents, with a single
+ * "mkdir -p" command.
+ */
+public class MkdirMessage extends AbstractSshMessage {
+
+    private final Collection<String> directories;
+
+    /**
+     * Constructor for MkdirMessage
+     * @param session the ssh session to use
+     * @param aDirectories the remote directories to create
+     */
+    public MkdirMessage(Session session, Collection<String> aDirectories) {
+        super(session);
+        this.directories = aDirectories;
+    }
+
+    /**
+     * Create the directories.
+     * @throws IOException on i/o errors
+     * @throws JSchException on ssh errors
+     */
+    public void execute() throws IOException, JSchException {
+        if (directories.isEmpty()) {
+            return;
+        }
+        StringBuffer cmd = new StringBuffer("mkdir -p");
+        for (String directory : directories) {
+            cmd.append(' ').append(quotePath(directory));
+        }
+        Channel channel = openExecChannel(cmd.toString());
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        ((ChannelExec) channel).setErrStream(err);
+        try {
+            channel.connect(getTimeout());
+            int status = waitForExit(channel);
+            if (status != 0) {
+                throw new ScpException("remote mkdir failed with status "
+                                       + status + ": "
+                                       + err.toString().trim());
+            }
+        } finally {
+            if (channel != null) {
+                channel.disconnect();
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Daniel Selman}.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Daniel Selman - initial API and implementation and/or initial documentation
+ *******************************************************************************/
+package org.selman.scp;
+
+/**
+ * A change to a file in the remote directory other than sending it: the
+ * file is deleted, or renamed to another path in the remote directory.
+ */
+public class RemoteChange {
+
+    private final String remotePath;
+    private final String newPath;
+
+    /**
+     * Returns the change that deletes a remote file.
+     * @param remotePath the '/' separated path of the file relative to the
+     *        remote directory
+     * @return the change
+     */
+    public static RemoteChange delete(String remotePath) {
+        return new RemoteChange(remotePath, null);
+    }
+
+    /**
+     * Returns the change that renames a remote file, replacing any file at
+     * the new path and creating its directory if needed.
+     * @param remotePath the '/' separated path of the file relative to the
+     *        remote directory
+     * @param newPath the '/' separated path to rename it to, relative to the
+     *        remote directory
+     * @return the change
+     */
+    public static RemoteChange rename(String remotePath, String newPath) {
+        return new RemoteChange(remotePath, trim(newPath));
+    }
+
+    private RemoteChange(String remotePath, String newPath) {
+        this.remotePath = trim(remotePath);
+        this.newPath = newPath;
+    }
+
+    /**
+     * Get the path of the file changed
+     * @return the '/' separated path relative to the remote directory
+     */
+    public String getRemotePath() {
+        return remotePath;
+    }
+
+    /**
+     * Get the path the file is renamed to
+     * @return the '/' separated path relative to the remote directory, or
+     *         null if the file is deleted
+     */
+    public String getNewPath() {
+        return newPath;
+    }
+
+    /**
+     * Is the file deleted
+     * @return true if the file is deleted, false if it is renamed
+     */
+    public boolean isDelete() {
+        return newPath == null;
+    }
+
+    public String toString() {
+        return isDelete() ? "delete " + remotePath
+            : "rename " + remotePath + " to " + newPath;
+    }
+
+    private static String trim(String path) {
+        while (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+        if (path.length() == 0 || path.endsWith("/")) {
+            throw new ScpException("invalid remote path '" + path + "'");
+        }
+        return path;
+    }
+}
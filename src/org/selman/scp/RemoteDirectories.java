@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Daniel Selman}.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Daniel Selman - initial API and implementation and/or initial documentation
+ *******************************************************************************/
+package org.selman.scp;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import com.jcraft.jsch.Session;
+
+/**
+ * Remembers, for each ssh session, the remote directories known to exist,
+ * so that a directory is created or checked at most once per session.
+ * Directories are forgotten with their session, so a new connection checks
+ * them again in case they were removed in the meantime.
+ */
+public class RemoteDirectories {
+
+    private static final RemoteDirectories DEFAULT = new RemoteDirectories();
+
+    private final Map<Session, Set<String>> known =
+        new WeakHashMap<Session, Set<String>>();
+
+    /**
+     * Get the cache shared by all transfers.
+     * @return the default cache
+     */
+    public static RemoteDirectories getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Returns the directories not known to exist on the host of a session.
+     * @param session the ssh session
+     * @param directories the remote directories
+     * @return the directories that may be missing, in the order given
+     */
+    public synchronized Set<String> getUnknown(Session session,
+                                               Collection<String> directories) {
+        Set<String> dirs = known.get(session);
+        Set<String> unknown = new LinkedHashSet<String>();
+        for (String directory : directories) {
+            String dir = normalize(directory);
+            if (dir.length() > 0 && (dirs == null || !dirs.contains(dir))) {
+                unknown.add(dir);
+            }
+        }
+        return unknown;
+    }
+
+    /**
+     * Records that directories, and so all of their parents, exist on the
+     * host of a session.
+     * @param session the ssh session
+     * @param directories the remote directories
+     */
+    public synchronized void add(Session session,
+                                 Collection<String> directories) {
+        Set<String> dirs = known.get(session);
+        if (dirs == null) {
+            dirs = new HashSet<String>();
+            known.put(session, dirs);
+        }
+        for (String directory : directories) {
+            String dir = normalize(directory);
+            while (dir.length() > 0 && dirs.add(dir)) {
+                dir = getParent(dir);
+            }
+        }
+    }
+
+    /**
+     * Forgets the directories known to exist on the host of a session.
+     * @param session the ssh session
+     */
+    public synchronized void forget(Session session) {
+        known.remove(session);
+    }
+
+    /**
+     * Returns the parent of a remote path, or an empty string if it has
+     * none.
+     * @param path a '/' separated remote path
+     * @return the parent directory
+     */
+    public static String getParent(String path) {
+        String dir = normalize(path);
+        int index = dir.lastIndexOf('/');
+        if (index > 0) {
+            return dir.substring(0, index);
+        }
+        return index == 0 && dir.length() > 1 ? "/" : "";
+    }
+
+    private static String normalize(String path) {
+        String dir = path;
+        while (dir.length() > 1 && dir.endsWith("/")) {
+            dir = dir.substring(0, dir.length() - 1);
+        }
+        return dir.equals(".") ? "" : dir;
+    }
+}
@@ -39,6 +39,8 @@ public abstract class SSHBase {
     private int port = SSH_PORT;
     private boolean failOnError = true;
     private boolean verbose;
+    private int timeout;
+    private SessionPool sessionPool;
     private SSHUserInfo userInfo;
 
     /**
@@ -177,6 +179,41 @@ public abstract class SSHBase {
         return port;
     }
 
+    /**
+     * Sets the timeout used when connecting the session and its channels.
+     *
+     * @param timeout timeout in milliseconds, 0 means wait forever.
+     */
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Get the timeout attribute.
+     * @return the timeout in milliseconds
+     */
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Sets the pool that sessions are leased from. Without a pool every
+     * transfer opens and closes its own session.
+     *
+     * @param sessionPool the pool to use, or null for no pooling.
+     */
+    public void setSessionPool(SessionPool sessionPool) {
+        this.sessionPool = sessionPool;
+    }
+
+    /**
+     * Get the session pool.
+     * @return the session pool, or null if sessions are not pooled
+     */
+    public SessionPool getSessionPool() {
+        return sessionPool;
+    }
+
     /**
      * Initialize the task.
      * This initializizs the known hosts and sets the default port.
@@ -188,11 +225,39 @@ public abstract class SSHBase {
     }
 
     /**
-     * Open an ssh seession.
+     * Open an ssh seession, or lease one from the session pool.
      * @return the opened session
      * @throws JSchException on error
      */
     protected Session openSession() throws JSchException {
+        if (sessionPool != null) {
+            return sessionPool.acquire(this);
+        }
+        return createSession();
+    }
+
+    /**
+     * Close a session returned by openSession(). A pooled session is
+     * returned to the pool unless it failed.
+     * @param session the session to close
+     * @param failed true if the session failed and must not be reused
+     */
+    protected void closeSession(Session session, boolean failed) {
+        if (sessionPool == null) {
+            session.disconnect();
+        } else if (failed) {
+            sessionPool.invalidate(session);
+        } else {
+            sessionPool.release(session);
+        }
+    }
+
+    /**
+     * Open a new ssh session.
+     * @return the opened session
+     * @throws JSchException on error
+     */
+    Session createSession() throws JSchException {
         JSch jsch = new JSch();
         final SSHBase base = this;
         if(verbose) {
@@ -217,7 +282,7 @@ public abstract class SSHBase {
         Session session = jsch.getSession(userInfo.getName(), host, port);
         session.setUserInfo(userInfo);
         log("Connecting to " + host + ":" + port);
-        session.connect();
+        session.connect(timeout);
         return session;
     }
 
@@ -22,6 +22,13 @@ package org.selman.scp;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import com.jcraft.jsch.JSchException;
 import com.jcraft.jsch.Session;
@@ -34,6 +41,19 @@ public class Scp extends SSHBase {
 
     private String fromUri;
     private String toUri;
+    private List<Transfer> transfers = new ArrayList<Transfer>();
+    private int channels = 1;
+    private boolean tarMode = false;
+    private boolean compress = true;
+    private boolean sftp = false;
+    private boolean skipExisting = true;
+    private LogListener logListener;
+    private int chunkSize = 0;
+    private int skipped;
+    private long bytesSent;
+    private long transferTime;
+    private Map<Transfer, Exception> failures =
+        new LinkedHashMap<Transfer, Exception>();
     
     public static void main(String[] args) {
     	if( args.length != 3 ) {
@@ -57,6 +77,205 @@ public class Scp extends SSHBase {
         setFromUri(aFromUri);
     }
 
+    /**
+     * Adds a file to be transferred along with the others added, through a
+     * single channel, to the remote directory set with setTodir(). The
+     * remote directory and any directories in the remote path are created
+     * as needed.
+     * @param localFile the file to transfer.
+     * @param remotePath the '/' separated path of the file relative to the
+     *        remote directory.
+     */
+    public void addTransfer(File localFile, String remotePath) {
+        transfers.add(new Transfer(localFile, remotePath));
+    }
+
+    /**
+     * Adds a file to be transferred along with the others added, whose
+     * content may be held in memory.
+     * @param transfer the file and its remote relative path.
+     */
+    public void addTransfer(Transfer transfer) {
+        transfers.add(transfer);
+    }
+
+    /**
+     * Sets the files to be transferred to the remote directory set with
+     * setTodir(), replacing any added before.
+     * @param transfers the files and their remote relative paths.
+     */
+    public void setTransfers(List<Transfer> transfers) {
+        this.transfers = new ArrayList<Transfer>(transfers);
+    }
+
+    /**
+     * Get the files to be transferred to the remote directory.
+     * @return the transfers
+     */
+    public List<Transfer> getTransfers() {
+        return transfers;
+    }
+
+    /**
+     * Sets the number of channels, over the one session, that transfers
+     * added with addTransfer() are sent through concurrently. On links
+     * with a long round trip several channels keep the link busy while
+     * each waits for its acknowledgements. The default is 1.
+     * @param channels the number of channels.
+     */
+    public void setChannels(int channels) {
+        this.channels = Math.max(1, channels);
+    }
+
+    /**
+     * Get the number of channels used for transfers.
+     * @return the number of channels
+     */
+    public int getChannels() {
+        return channels;
+    }
+
+    /**
+     * Sets whether transfers added with addTransfer() are sent as a single
+     * tar stream, piped into "tar -x" on the remote host, rather than as
+     * scp messages. This avoids an acknowledgement round trip per file, but
+     * the transfer then succeeds or fails as a whole. The remote host needs
+     * tar. The default is false.
+     * @param tarMode true to send transfers as a tar stream.
+     */
+    public void setTarMode(boolean tarMode) {
+        this.tarMode = tarMode;
+    }
+
+    /**
+     * Get whether transfers are sent as a tar stream.
+     * @return true if transfers are sent as a tar stream
+     */
+    public boolean getTarMode() {
+        return tarMode;
+    }
+
+    /**
+     * Sets whether a tar stream is gzip compressed. The default is true.
+     * @param compress true to compress the tar stream.
+     */
+    public void setCompress(boolean compress) {
+        this.compress = compress;
+    }
+
+    /**
+     * Get whether a tar stream is gzip compressed.
+     * @return true if the tar stream is compressed
+     */
+    public boolean getCompress() {
+        return compress;
+    }
+
+    /**
+     * Sets whether transfers added with addTransfer() are sent over sftp
+     * rather than scp. Over sftp a file whose remote size and modification
+     * time match the local file may be skipped, see setSkipExisting(), and
+     * the remote directories are created without running a remote command.
+     * The default is false.
+     * @param sftp true to send transfers over sftp.
+     */
+    public void setSftp(boolean sftp) {
+        this.sftp = sftp;
+    }
+
+    /**
+     * Get whether transfers are sent over sftp.
+     * @return true if transfers are sent over sftp
+     */
+    public boolean getSftp() {
+        return sftp;
+    }
+
+    /**
+     * Sets whether, over sftp, a file is skipped when the remote file has
+     * the same size and modification time. The modification time is only
+     * compared in seconds, so a caller that already knows the files have
+     * changed should turn this off. The default is true.
+     * @param skipExisting false to send every file.
+     */
+    public void setSkipExisting(boolean skipExisting) {
+        this.skipExisting = skipExisting;
+    }
+
+    /**
+     * Get whether files the remote already has are skipped over sftp.
+     * @return true if they are skipped
+     */
+    public boolean getSkipExisting() {
+        return skipExisting;
+    }
+
+    /**
+     * Sets the listener that receives the log messages of the transfers,
+     * such as the throughput of each file sent. By default they are
+     * discarded.
+     * @param logListener the listener, or null to discard the messages.
+     */
+    public void setLogListener(LogListener logListener) {
+        this.logListener = logListener;
+    }
+
+    /**
+     * Sets the number of bytes read from a file and written to a channel at
+     * a time by scp transfers. 0, the default, leaves the choice to
+     * ScpToMessage.
+     * @param chunkSize the chunk size in bytes.
+     */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Get the number of bytes sent at a time.
+     * @return the chunk size in bytes, or 0 for the default
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Get the number of bytes of file content sent by scp during the last
+     * execute().
+     * @return the number of bytes
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * Get the time spent sending file content by scp during the last
+     * execute(), summed over the channels used.
+     * @return the time in milliseconds
+     */
+    public long getTransferTime() {
+        return transferTime;
+    }
+
+    /**
+     * Get the number of transfers skipped during the last execute() because
+     * the remote host already had the file. Only sftp skips files.
+     * @return the number of transfers skipped
+     */
+    public int getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * Get the transfers that failed during the last execute(), and the
+     * cause of each failure. A failed file does not stop the others, but
+     * if the whole transfer is abandoned every file not yet sent is
+     * included.
+     * @return the failures
+     */
+    public Map<Transfer, Exception> getFailures() {
+        return failures;
+    }
+
     /**
      * Sets the location where files will be transferred to.
      * This can either be a remote directory or a local directory.
@@ -99,6 +318,7 @@ public class Scp extends SSHBase {
         super.init();
         this.toUri = null;
         this.fromUri = null;
+        this.transfers.clear();
     }
 
     /**
@@ -106,9 +326,16 @@ public class Scp extends SSHBase {
      * @throws ScpException on error
      */
     public void execute() throws ScpException {
-        
+        failures = new LinkedHashMap<Transfer, Exception>();
+        skipped = 0;
+        bytesSent = 0;
+        transferTime = 0;
     	try {
-    		upload(fromUri, toUri);
+    		if (!transfers.isEmpty()) {
+    			upload(transfers, toUri);
+    		} else {
+    			upload(fromUri, toUri);
+    		}
         } catch (Exception e) {
             if (getFailonerror()) {
                 if(e instanceof ScpException) {
@@ -123,25 +350,358 @@ public class Scp extends SSHBase {
         }
     }
 
-    private void upload(String fromPath, String toSshUri)
-        throws IOException, JSchException {
-        String file = parseUri(toSshUri);
+    /**
+     * Updates a file in the remote directory set with setTodir() by sending
+     * only the difference between its new content and the basis, the copy
+     * the remote host is expected to have. The remote host needs python.
+     * @param basis the content the remote file is expected to have.
+     * @param content the new content of the file.
+     * @param remotePath the '/' separated path of the file relative to the
+     *        remote directory.
+     * @return the number of bytes saved by sending a delta, or -1 if the
+     *         delta could not be applied and the file must be sent in full.
+     * @throws ScpException on error
+     */
+    public long sendDelta(byte[] basis, byte[] content, String remotePath)
+        throws ScpException {
+        final Delta delta = Delta.compute(basis, content);
+        if (delta.getBytesSaved() <= 0) {
+            return -1;
+        }
+        while (remotePath.startsWith("/")) {
+            remotePath = remotePath.substring(1);
+        }
+        try {
+            final String file = parseUri(toUri) + "/" + remotePath;
+            final boolean[] applied = new boolean[1];
+            upload(new Sender() {
+                public void send(Session session)
+                    throws IOException, JSchException {
+                    DeltaMessage message =
+                        new DeltaMessage(session, delta, file);
+                    configure(message);
+                    message.execute();
+                    applied[0] = message.isApplied();
+                }
+            });
+            return applied[0] ? delta.getBytesSaved() : -1;
+        } catch (IOException e) {
+            throw new ScpException(e);
+        } catch (JSchException e) {
+            throw new ScpException(e);
+        }
+    }
+
+    /**
+     * Deletes files from the remote directory set with setTodir(). Files
+     * that do not exist are ignored.
+     * @param remotePaths the '/' separated paths of the files relative to
+     *        the remote directory.
+     * @throws ScpException on error
+     */
+    public void delete(List<String> remotePaths) throws ScpException {
+        List<RemoteChange> changes = new ArrayList<RemoteChange>();
+        for (String remotePath : remotePaths) {
+            changes.add(RemoteChange.delete(remotePath));
+        }
+        change(changes);
+    }
 
-        Session session = null;
+    /**
+     * Deletes and renames files in the remote directory set with setTodir(),
+     * in order. Over scp the changes are made by a single shell command,
+     * over sftp by one request each. Files that do not exist are ignored.
+     * @param changes the changes to make.
+     * @return the renames that were not made because the file did not exist.
+     * @throws ScpException on error, after the other changes have been made
+     */
+    public List<RemoteChange> change(final List<RemoteChange> changes)
+        throws ScpException {
+        final List<RemoteChange> missing = new ArrayList<RemoteChange>();
+        if (changes.isEmpty()) {
+            return missing;
+        }
         try {
-            session = openSession();
-            ScpToMessage message = null;
-                message =
+            final String dir = parseUri(toUri);
+            upload(new Sender() {
+                public void send(Session session)
+                    throws IOException, JSchException {
+                    if (sftp) {
+                        SftpMessage message = new SftpMessage(session,
+                            new TransferQueue(new ArrayList<Transfer>()), dir);
+                        message.setChanges(changes);
+                        configure(message);
+                        message.execute();
+                        missing.addAll(message.getMissing());
+                    } else {
+                        ChangeMessage message =
+                            new ChangeMessage(session, changes, dir);
+                        configure(message);
+                        message.execute();
+                        missing.addAll(message.getMissing());
+                    }
+                }
+            });
+            return missing;
+        } catch (IOException e) {
+            throw new ScpException(e);
+        } catch (JSchException e) {
+            throw new ScpException(e);
+        }
+    }
+
+    private void upload(final String fromPath, String toSshUri)
+        throws IOException, JSchException {
+        final String file = parseUri(toSshUri);
+        upload(new Sender() {
+            public void send(Session session)
+                throws IOException, JSchException {
+                ScpToMessage message =
                     new ScpToMessage(session,
                                      new File(fromPath), file);
-            message.execute();
+                configure(message);
+                message.execute();
+            }
+        });
+    }
+
+    private void upload(final List<Transfer> files, String toSshUri)
+        throws IOException, JSchException {
+        final String dir = parseUri(toSshUri);
+        // the queue outlives a reconnect, so only unsent files are resent
+        final TransferQueue queue = new TransferQueue(files);
+        final int count = Math.min(channels, files.size());
+        try {
+            upload(new Sender() {
+                public void send(Session session)
+                    throws IOException, JSchException {
+                    if (!sftp) {
+                        makeDirectories(session, Collections.singleton(dir));
+                    }
+                    boolean sent = false;
+                    try {
+                        if (tarMode && !sftp) {
+                            sendTar(session, queue, dir);
+                        } else {
+                            sendQueue(session, queue, dir, count);
+                        }
+                        sent = queue.getFailures().isEmpty();
+                    } finally {
+                        RemoteDirectories known = RemoteDirectories.getDefault();
+                        if (sent) {
+                            // the transfer created the directories of the files
+                            known.add(session, getDirectories(dir, files));
+                        } else {
+                            // a directory may have been removed, check again
+                            known.forget(session);
+                        }
+                    }
+                }
+            });
+        } catch (IOException e) {
+            queue.failRemaining(e);
+            throw e;
+        } catch (JSchException e) {
+            queue.failRemaining(e);
+            throw e;
+        } catch (RuntimeException e) {
+            queue.failRemaining(e);
+            throw e;
         } finally {
-            if (session != null) {
-                session.disconnect();
+            failures = queue.getFailures();
+            skipped = queue.getSkipped();
+            bytesSent = queue.getBytes();
+            transferTime = queue.getMillis();
+        }
+
+        if (!failures.isEmpty()) {
+            Map.Entry<Transfer, Exception> first =
+                failures.entrySet().iterator().next();
+            throw new ScpException("failed to send " + failures.size()
+                                   + " of " + files.size() + " files, first "
+                                   + first.getKey() + ": "
+                                   + first.getValue().getMessage(),
+                                   first.getValue());
+        }
+    }
+
+    /**
+     * Creates the remote directories not already known to exist on the
+     * host of a session, with a single command.
+     */
+    private void makeDirectories(Session session,
+                                 Collection<String> directories)
+        throws IOException, JSchException {
+        RemoteDirectories known = RemoteDirectories.getDefault();
+        Set<String> missing = known.getUnknown(session, directories);
+        if (!missing.isEmpty()) {
+            MkdirMessage message = new MkdirMessage(session, missing);
+            configure(message);
+            message.execute();
+            known.add(session, missing);
+        }
+    }
+
+    private static List<String> getDirectories(String dir,
+                                               List<Transfer> files) {
+        List<String> directories = new ArrayList<String>();
+        for (Transfer transfer : files) {
+            String path = RemoteDirectories.getParent(transfer.getRemotePath());
+            directories.add(path.length() == 0 ? dir : dir + "/" + path);
+        }
+        return directories;
+    }
+
+    private void sendTar(Session session, TransferQueue queue, String dir)
+        throws IOException, JSchException {
+        // the stream succeeds or fails as a whole, so the queue is only
+        // emptied once the remote tar has exited cleanly
+        List<Transfer> files = new ArrayList<Transfer>();
+        for (Transfer transfer; (transfer = queue.next()) != null;) {
+            files.add(transfer);
+        }
+        TarMessage message = new TarMessage(session, files, dir, compress);
+        configure(message);
+        try {
+            message.execute();
+        } catch (IOException e) {
+            requeue(queue, files);
+            throw e;
+        } catch (JSchException e) {
+            requeue(queue, files);
+            throw e;
+        } catch (RuntimeException e) {
+            requeue(queue, files);
+            throw e;
+        }
+        for (Transfer transfer : files) {
+            queue.sent(transfer);
+        }
+    }
+
+    private static void requeue(TransferQueue queue, List<Transfer> files) {
+        for (int i = files.size() - 1; i >= 0; i--) {
+            queue.retry(files.get(i));
+        }
+    }
+
+    private void sendQueue(final Session session, final TransferQueue queue,
+                           final String dir, int count)
+        throws IOException, JSchException {
+        if (count <= 1) {
+            AbstractSshMessage message = newMessage(session, queue, dir);
+            configure(message);
+            message.execute();
+            return;
+        }
+
+        final Exception[] errors = new Exception[count];
+        Thread[] threads = new Thread[count];
+        for (int i = 0; i < count; i++) {
+            final int channel = i;
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        AbstractSshMessage message =
+                            newMessage(session, queue, dir);
+                        configure(message);
+                        message.execute();
+                    } catch (Exception e) {
+                        errors[channel] = e;
+                    }
+                }
+            }, (sftp ? "sftp" : "scp") + " channel " + i + " to "
+                + getHost());
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                throw new ScpException("interrupted while sending files", e);
+            }
+        }
+
+        for (Exception e : errors) {
+            if (e instanceof IOException) {
+                throw (IOException) e;
+            } else if (e instanceof JSchException) {
+                throw (JSchException) e;
+            } else if (e instanceof RuntimeException) {
+                throw (RuntimeException) e;
+            }
+        }
+    }
+
+    /**
+     * Creates the message that sends files from a queue over one channel.
+     */
+    private AbstractSshMessage newMessage(Session session,
+                                          TransferQueue queue, String dir) {
+        if (sftp) {
+            SftpMessage message = new SftpMessage(session, queue, dir);
+            message.setSkipExisting(skipExisting);
+            return message;
+        }
+        ScpToMessage message = new ScpToMessage(session, queue, dir);
+        if (chunkSize > 0) {
+            message.setChunkSize(chunkSize);
+        }
+        return message;
+    }
+
+    /**
+     * Applies the settings of this task to a message.
+     */
+    private void configure(AbstractSshMessage message) {
+        message.setTimeout(getTimeout());
+        if (logListener != null) {
+            message.setLogListener(logListener);
+        }
+    }
+
+    private void upload(Sender sender)
+        throws IOException, JSchException {
+        for (int attempt = 0;; attempt++) {
+            Session session = openSession();
+            boolean broken = false;
+            try {
+                sender.send(session);
+                return;
+            } catch (IOException e) {
+                broken = true;
+                if (attempt > 0 || !isStale(session)) {
+                    throw e;
+                }
+            } catch (JSchException e) {
+                broken = true;
+                if (attempt > 0 || !isStale(session)) {
+                    throw e;
+                }
+            } finally {
+                closeSession(session, broken);
             }
+            // the pooled session had gone stale, try once more on a new one
+            log("Reconnecting to " + getHost());
         }
     }
 
+    /**
+     * Sends a transfer over a session, for each attempt at the transfer.
+     */
+    private interface Sender {
+        void send(Session session) throws IOException, JSchException;
+    }
+
+    /**
+     * Returns true if a failure on the session may be caused by the
+     * connection having gone stale while it sat in the session pool.
+     */
+    private boolean isStale(Session session) {
+        return getSessionPool() != null
+            && (getSessionPool().isReused(session) || !session.isConnected());
+    }
+
     private String parseUri(String uri) {
 
         int indexOfAt = uri.indexOf('@');
@@ -25,6 +25,10 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
 
 import com.jcraft.jsch.Channel;
 import com.jcraft.jsch.JSchException;
@@ -35,10 +39,16 @@ import com.jcraft.jsch.Session;
  */
 public class ScpToMessage extends AbstractSshMessage {
 
-    private static final int BUFFER_SIZE = 1024;
+    private static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    private static final int MIN_CHUNK_SIZE = 1024;
 
     private File localFile;
+    private TransferQueue queue;
     private String remotePath;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private ByteBuffer buffer;
+    private byte[] chunk;
 
     /**
      * Constructor for ScpToMessage
@@ -63,6 +73,38 @@ public class ScpToMessage extends AbstractSshMessage {
         this.localFile = aLocalFile;
     }
 
+    /**
+     * Constructor for many local files to a remote directory. The files
+     * are sent, along with any directories they need, through a single
+     * channel.
+     * @param session the scp session to use
+     * @param aTransfers the local files and their paths relative to the
+     *        remote directory
+     * @param aRemotePath the remote directory
+     */
+    public ScpToMessage(Session session,
+                        List<Transfer> aTransfers,
+                        String aRemotePath) {
+        this(session, new TransferQueue(aTransfers), aRemotePath);
+    }
+
+    /**
+     * Constructor for a queue of local files to a remote directory, which
+     * may be shared with other messages sending over other channels. A
+     * file that fails is recorded in the queue and the rest are sent over
+     * a new channel.
+     * @param session the scp session to use
+     * @param aQueue the local files and their paths relative to the
+     *        remote directory
+     * @param aRemotePath the remote directory
+     */
+    public ScpToMessage(Session session,
+                        TransferQueue aQueue,
+                        String aRemotePath) {
+        this(session, aRemotePath);
+        this.queue = aQueue;
+    }
+
     /**
      * Constructor for ScpToMessage.
      * @param verbose if true do verbose logging
@@ -76,6 +118,24 @@ public class ScpToMessage extends AbstractSshMessage {
         this.remotePath = aRemotePath;
     }
 
+    /**
+     * Sets the number of bytes read from a file and written to the channel
+     * at a time. Large chunks let big files be sent at the speed of the
+     * link. The default is 64 KB.
+     * @param chunkSize the chunk size in bytes
+     */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = Math.max(MIN_CHUNK_SIZE, chunkSize);
+    }
+
+    /**
+     * Get the number of bytes sent at a time.
+     * @return the chunk size in bytes
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
     /**
      * Carry out the transfer.
      * @throws IOException on i/o errors
@@ -84,22 +144,27 @@ public class ScpToMessage extends AbstractSshMessage {
     public void execute() throws IOException, JSchException {
         if (localFile != null) {
             doSingleTransfer();
+        } else if (queue != null) {
+            while (!queue.isEmpty()) {
+                doMultipleTransfer();
+            }
         }
         log("done.\n");
     }
 
     private void doSingleTransfer() throws IOException, JSchException {
-        String cmd = "scp -t " + remotePath;
+        String cmd = "scp -t " + quotePath(remotePath);
         Channel channel = openExecChannel(cmd);
         try {
 
             OutputStream out = channel.getOutputStream();
             InputStream in = channel.getInputStream();
 
-            channel.connect();
+            channel.connect(getTimeout());
 
             waitForAck(in);
-            sendFileToRemote(localFile, in, out);
+            sendFileToRemote(new Transfer(localFile, localFile.getName()),
+                             localFile.getName(), in, out);
         } finally {
             if (channel != null) {
                 channel.disconnect();
@@ -107,13 +172,100 @@ public class ScpToMessage extends AbstractSshMessage {
         }
     }
 
-    private void sendFileToRemote(File localFile,
-                                   InputStream in,
-                                   OutputStream out) throws IOException {
+    /**
+     * Sends files from the queue through one channel until the queue is
+     * empty or a file fails, in which case the channel is abandoned since
+     * the state of the remote scp is unknown.
+     */
+    private void doMultipleTransfer() throws IOException, JSchException {
+        String cmd = "scp -t -r -d " + quotePath(remotePath);
+        Channel channel = openExecChannel(cmd);
+        try {
+
+            OutputStream out = channel.getOutputStream();
+            InputStream in = channel.getInputStream();
+
+            channel.connect(getTimeout());
+
+            waitForAck(in);
+
+            List<String> current = new ArrayList<String>();
+            Transfer transfer;
+            while ((transfer = queue.next()) != null) {
+                try {
+                    String[] segments = transfer.getRemotePath().split("/");
+                    int depth = segments.length - 1;
+                    int common = 0;
+                    while (common < current.size() && common < depth
+                           && current.get(common).equals(segments[common])) {
+                        common++;
+                    }
+                    while (current.size() > common) {
+                        sendDirectoryEnd(in, out);
+                        current.remove(current.size() - 1);
+                    }
+                    while (current.size() < depth) {
+                        String name = segments[current.size()];
+                        sendDirectory(name, in, out);
+                        current.add(name);
+                    }
+                    long millis = sendFileToRemote(transfer, segments[depth],
+                                                   in, out);
+                    queue.sent(transfer, transfer.getLength(), millis);
+                } catch (IOException e) {
+                    if (!channel.getSession().isConnected()) {
+                        // the connection is gone, not just this file
+                        queue.retry(transfer);
+                        throw e;
+                    }
+                    queue.failed(transfer, e);
+                    return;
+                } catch (ScpException e) {
+                    queue.failed(transfer, e);
+                    return;
+                }
+            }
+            while (!current.isEmpty()) {
+                sendDirectoryEnd(in, out);
+                current.remove(current.size() - 1);
+            }
+        } finally {
+            if (channel != null) {
+                channel.disconnect();
+            }
+        }
+    }
+
+    private void sendDirectory(String name,
+                               InputStream in,
+                               OutputStream out) throws IOException {
+        // send "D0755 0 dirname", the remote scp enters (and creates) it
+        String command = "D0755 0 " + name + "\n";
+        out.write(command.getBytes());
+        out.flush();
+        waitForAck(in);
+    }
+
+    private void sendDirectoryEnd(InputStream in,
+                                  OutputStream out) throws IOException {
+        // send "E", the remote scp goes back up to the parent directory
+        out.write("E\n".getBytes());
+        out.flush();
+        waitForAck(in);
+    }
+
+    /**
+     * Sends a file.
+     * @return the time taken to send the content, in milliseconds
+     */
+    private long sendFileToRemote(Transfer transfer,
+                                  String remoteName,
+                                  InputStream in,
+                                  OutputStream out) throws IOException {
         // send "C0644 filesize filename", where filename should not include '/'
-        long filesize = localFile.length();
+        long filesize = transfer.getLength();
         String command = "C0644 " + filesize + " ";
-        command += localFile.getName();
+        command += remoteName;
         command += "\n";
 
         out.write(command.getBytes());
@@ -121,25 +273,56 @@ public class ScpToMessage extends AbstractSshMessage {
 
         waitForAck(in);
 
-        // send a content of lfile
-        FileInputStream fis = new FileInputStream(localFile);
-        byte[] buf = new byte[BUFFER_SIZE];
-        long totalLength = 0;
+        long start = System.currentTimeMillis();
+        byte[] content = transfer.getContent();
+        if (content != null) {
+            for (int offset = 0; offset < content.length; offset += chunkSize) {
+                out.write(content, offset,
+                          Math.min(chunkSize, content.length - offset));
+            }
+        } else {
+            sendFileContent(transfer.getLocalFile(), filesize, out);
+        }
+        out.flush();
+        sendAck(out);
+        waitForAck(in);
+        long millis = System.currentTimeMillis() - start;
+
+        log(remoteName + ": " + filesize + " bytes in " + millis + " ms"
+            + (millis > 0 ? ", " + (filesize * 1000 / 1024 / millis)
+               + " KB/s" : "") + "\n");
+        return millis;
+    }
 
+    /**
+     * Sends exactly filesize bytes of a file, a chunk at a time, read
+     * through a FileChannel into a chunk array that is reused for every
+     * file and written to the channel as it is.
+     */
+    private void sendFileContent(File file,
+                                 long filesize,
+                                 OutputStream out) throws IOException {
+        if (chunk == null || chunk.length != chunkSize) {
+            // JSch only writes byte arrays, so read straight into one
+            chunk = new byte[chunkSize];
+            buffer = ByteBuffer.wrap(chunk);
+        }
+        FileChannel channel = new FileInputStream(file).getChannel();
         try {
-            while (true) {
-                int len = fis.read(buf, 0, buf.length);
+            long remaining = filesize;
+            while (remaining > 0) {
+                buffer.clear();
+                buffer.limit((int) Math.min(chunkSize, remaining));
+                int len = channel.read(buffer);
                 if (len <= 0) {
-                    break;
+                    throw new IOException("file shrank while sending "
+                                          + file);
                 }
-                out.write(buf, 0, len);
-                totalLength += len;
+                out.write(chunk, 0, len);
+                remaining -= len;
             }
-            out.flush();
-            sendAck(out);
-            waitForAck(in);
         } finally {
-            fis.close();
+            channel.close();
         }
     }
 
@@ -151,6 +334,14 @@ public class ScpToMessage extends AbstractSshMessage {
         return localFile;
     }
 
+    /**
+     * Get the queue of local files and their remote paths
+     * @return the queue, or null for a single file
+     */
+    public TransferQueue getQueue() {
+        return queue;
+    }
+
     /**
      * Get the remote path
      * @return the remote path
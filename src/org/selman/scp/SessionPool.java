@@ -0,0 +1,287 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Daniel Selman}.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Daniel Selman - initial API and implementation and/or initial documentation
+ *******************************************************************************/
+package org.selman.scp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+/**
+ * Keeps authenticated ssh sessions open so that consecutive transfers to the
+ * same host do not each pay for a TCP connection, an ssh handshake and
+ * authentication. Sessions are keyed by user, host, port and identity file,
+ * kept alive with ssh keepalive messages while they are open, and closed
+ * once they have been idle for longer than the idle timeout.
+ * <p>
+ * A session may be leased by several users at once, since ssh multiplexes
+ * channels over a single session.
+ */
+public class SessionPool {
+
+    /** Default time in milliseconds after which an unused session is closed */
+    private static final long IDLE_TIMEOUT = 5 * 60 * 1000;
+
+    /** Default interval in milliseconds between keepalive messages */
+    private static final int KEEPALIVE_INTERVAL = 30 * 1000;
+
+    /** Unanswered keepalive messages after which a session is dropped */
+    private static final int KEEPALIVE_COUNT_MAX = 3;
+
+    private static final SessionPool DEFAULT = new SessionPool();
+
+    private static class Key {
+        private final String user;
+        private final String host;
+        private final int port;
+        private final String keyfile;
+
+        Key(String user, String host, int port, String keyfile) {
+            this.user = user;
+            this.host = host;
+            this.port = port;
+            this.keyfile = keyfile;
+        }
+
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key that = (Key) obj;
+            return port == that.port && equal(user, that.user)
+                && equal(host, that.host) && equal(keyfile, that.keyfile);
+        }
+
+        public int hashCode() {
+            int hash = port;
+            hash = hash * 31 + (user == null ? 0 : user.hashCode());
+            hash = hash * 31 + (host == null ? 0 : host.hashCode());
+            hash = hash * 31 + (keyfile == null ? 0 : keyfile.hashCode());
+            return hash;
+        }
+
+        private static boolean equal(Object a, Object b) {
+            return a == null ? b == null : a.equals(b);
+        }
+
+        public String toString() {
+            return user + "@" + host + ":" + port;
+        }
+    }
+
+    private static class PooledSession {
+        final Key key;
+        final Session session;
+        int leases;
+        int uses;
+        long lastUsed;
+
+        PooledSession(Key key, Session session) {
+            this.key = key;
+            this.session = session;
+        }
+    }
+
+    private final Map<Key, PooledSession> sessions = new HashMap<Key, PooledSession>();
+    private final Map<Session, PooledSession> leased = new IdentityHashMap<Session, PooledSession>();
+    private long idleTimeout = IDLE_TIMEOUT;
+    private int keepAliveInterval = KEEPALIVE_INTERVAL;
+    private Timer evictor;
+
+    /**
+     * Returns the pool shared by everything in this JVM.
+     * @return the shared pool
+     */
+    public static SessionPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Sets the time after which an unused session is closed.
+     * @param idleTimeout the timeout in milliseconds
+     */
+    public synchronized void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Sets the interval between keepalive messages on new sessions.
+     * @param keepAliveInterval the interval in milliseconds, 0 to disable
+     */
+    public synchronized void setKeepAliveInterval(int keepAliveInterval) {
+        this.keepAliveInterval = keepAliveInterval;
+    }
+
+    /**
+     * Leases a connected session for the user, host, port and identity of
+     * the given task, opening a new one if the pool holds none or the pooled
+     * one has been disconnected. Every lease must be ended with
+     * {@link #release(Session)} or {@link #invalidate(Session)}.
+     * @param base the task to connect for
+     * @return a connected session
+     * @throws JSchException if a new session cannot be opened
+     */
+    public Session acquire(SSHBase base) throws JSchException {
+        Key key = new Key(base.getUserInfo().getName(), base.getHost(),
+                          base.getPort(), base.getUserInfo().getKeyfile());
+        synchronized (this) {
+            PooledSession pooled = sessions.get(key);
+            if (pooled != null && pooled.session.isConnected()) {
+                return lease(pooled);
+            }
+            if (pooled != null) {
+                sessions.remove(key);
+            }
+        }
+
+        // connect outside the lock so other hosts are not held up
+        Session session = base.createSession();
+        int interval;
+        synchronized (this) {
+            interval = keepAliveInterval;
+        }
+        if (interval > 0) {
+            session.setServerAliveInterval(interval);
+            session.setServerAliveCountMax(KEEPALIVE_COUNT_MAX);
+        }
+
+        synchronized (this) {
+            PooledSession pooled = sessions.get(key);
+            if (pooled != null && pooled.session.isConnected()) {
+                // another thread connected first
+                session.disconnect();
+                return lease(pooled);
+            }
+            pooled = new PooledSession(key, session);
+            sessions.put(key, pooled);
+            startEvictor();
+            return lease(pooled);
+        }
+    }
+
+    /**
+     * Ends a lease, leaving the session open for the next transfer.
+     * @param session a session returned by {@link #acquire(SSHBase)}
+     */
+    public synchronized void release(Session session) {
+        PooledSession pooled = leased.get(session);
+        if (pooled == null) {
+            return;
+        }
+        pooled.leases--;
+        pooled.lastUsed = System.currentTimeMillis();
+        if (pooled.leases == 0) {
+            leased.remove(session);
+            if (!session.isConnected() || sessions.get(pooled.key) != pooled) {
+                session.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Ends a lease on a session that failed, so that it is not handed out
+     * again. The session is disconnected once its last lease ends.
+     * @param session a session returned by {@link #acquire(SSHBase)}
+     */
+    public synchronized void invalidate(Session session) {
+        PooledSession pooled = leased.get(session);
+        if (pooled != null && sessions.get(pooled.key) == pooled) {
+            sessions.remove(pooled.key);
+        }
+        release(session);
+    }
+
+    /**
+     * Returns true if the session had already been used for an earlier
+     * transfer when it was leased, in which case a failure may just mean
+     * the connection went stale and is worth retrying on a new session.
+     * @param session a leased session
+     * @return true if the session was reused
+     */
+    public synchronized boolean isReused(Session session) {
+        PooledSession pooled = leased.get(session);
+        return pooled != null && pooled.uses > 1;
+    }
+
+    /**
+     * Closes sessions that are not leased and have been unused for longer
+     * than the idle timeout.
+     */
+    public synchronized void evictIdle() {
+        long now = System.currentTimeMillis();
+        for (Iterator<PooledSession> i = sessions.values().iterator(); i.hasNext();) {
+            PooledSession pooled = i.next();
+            if (pooled.leases == 0
+                && (now - pooled.lastUsed > idleTimeout
+                    || !pooled.session.isConnected())) {
+                i.remove();
+                pooled.session.disconnect();
+            }
+        }
+        if (sessions.isEmpty() && evictor != null) {
+            evictor.cancel();
+            evictor = null;
+        }
+    }
+
+    /**
+     * Closes every session that is not leased. Leased sessions are closed
+     * when their last lease ends.
+     */
+    public synchronized void closeAll() {
+        List<PooledSession> all = new ArrayList<PooledSession>(sessions.values());
+        sessions.clear();
+        for (PooledSession pooled : all) {
+            if (pooled.leases == 0) {
+                pooled.session.disconnect();
+            }
+        }
+        if (evictor != null) {
+            evictor.cancel();
+            evictor = null;
+        }
+    }
+
+    /**
+     * Returns the number of open sessions in the pool.
+     * @return the number of sessions
+     */
+    public synchronized int size() {
+        return sessions.size();
+    }
+
+    private Session lease(PooledSession pooled) {
+        pooled.leases++;
+        pooled.uses++;
+        pooled.lastUsed = System.currentTimeMillis();
+        leased.put(pooled.session, pooled);
+        return pooled.session;
+    }
+
+    private void startEvictor() {
+        if (evictor == null) {
+            evictor = new Timer("SSH session evictor", true);
+            long period = Math.max(1000, idleTimeout / 2);
+            evictor.schedule(new TimerTask() {
+                public void run() {
+                    evictIdle();
+                }
+            }, period, period);
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Daniel Selman}.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Daniel Selman - initial API and implementation and/or initial documentation
+ *******************************************************************************/
+package org.selman.scp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SftpATTRS;
+import com.jcraft.jsch.SftpException;
+
+/**
+ * Sends a queue of local files to a remote directory over sftp. Unlike scp,
+ * sftp can ask the remote host about its files: a file whose remote size and
+ * modification time already match the local file is skipped, missing
+ * directories are created and remote files can be deleted or renamed. A file
+ * that fails
+ * does not end the channel, since sftp reports an error per request.
+ * <p>
+ * Each file is written with pipelined write requests, so the transfer of a
+ * file does not wait for a round trip per block.
+ */
+public class SftpMessage extends AbstractSshMessage {
+
+    private final TransferQueue queue;
+    private final String remotePath;
+    private List<RemoteChange> changes = Collections.emptyList();
+    private final List<RemoteChange> missing = new ArrayList<RemoteChange>();
+    private boolean skipExisting = true;
+
+    /**
+     * Constructor for a queue of local files to a remote directory, which
+     * may be shared with other messages sending over other channels.
+     * @param session the ssh session to use
+     * @param aQueue the local files and their paths relative to the
+     *        remote directory
+     * @param aRemotePath the remote directory
+     */
+    public SftpMessage(Session session,
+                       TransferQueue aQueue,
+                       String aRemotePath) {
+        super(session);
+        this.queue = aQueue;
+        this.remotePath = getSftpPath(aRemotePath);
+    }
+
+    /**
+     * Sets the files to delete or rename, in order, before any file is sent.
+     * Files that do not exist are ignored. A change that fails does not stop
+     * the ones after it, but the message fails once they are made.
+     * @param aChanges the changes to make
+     */
+    public void setChanges(List<RemoteChange> aChanges) {
+        this.changes = new ArrayList<RemoteChange>(aChanges);
+    }
+
+    /**
+     * Get the renames that were not made because the file did not exist.
+     * @return the renames skipped
+     */
+    public List<RemoteChange> getMissing() {
+        return missing;
+    }
+
+    /**
+     * Sets whether a file is skipped when the remote file has the same size
+     * and modification time. The default is true.
+     * @param skipExisting false to send every file
+     */
+    public void setSkipExisting(boolean skipExisting) {
+        this.skipExisting = skipExisting;
+    }
+
+    /**
+     * Carry out the transfer.
+     * @throws IOException on i/o errors
+     * @throws JSchException on ssh errors
+     */
+    public void execute() throws IOException, JSchException {
+        ChannelSftp channel = openSftpChannel();
+        try {
+            channel.connect(getTimeout());
+
+            ScpException failure = null;
+            for (RemoteChange change : changes) {
+                try {
+                    change(channel, change);
+                } catch (SftpException e) {
+                    if (!channel.getSession().isConnected()) {
+                        throw new IOException("connection lost making "
+                                              + change + ": " + e);
+                    }
+                    if (failure == null) {
+                        failure = new ScpException("failed to " + change
+                                                   + ": " + e, e);
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+
+            Transfer transfer;
+            while ((transfer = queue.next()) != null) {
+                try {
+                    send(channel, transfer);
+                } catch (SftpException e) {
+                    if (!channel.getSession().isConnected()) {
+                        // the connection is gone, not just this file
+                        queue.retry(transfer);
+                        throw new IOException("connection lost sending "
+                                              + transfer + ": " + e);
+                    }
+                    queue.failed(transfer, new ScpException(e.toString(), e));
+                } catch (IOException e) {
+                    if (!channel.getSession().isConnected()) {
+                        queue.retry(transfer);
+                        throw e;
+                    }
+                    queue.failed(transfer, e);
+                }
+            }
+            log("done.\n");
+        } finally {
+            if (channel != null) {
+                channel.disconnect();
+            }
+        }
+    }
+
+    private void send(ChannelSftp channel, Transfer transfer)
+        throws IOException, SftpException {
+        String file = getPath(transfer.getRemotePath());
+        int mtime = (int) (transfer.getLastModified() / 1000);
+
+        if (skipExisting) {
+            SftpATTRS attrs = stat(channel, file);
+            if (attrs != null && !attrs.isDir()
+                && attrs.getSize() == transfer.getLength()
+                && attrs.getMTime() == mtime) {
+                queue.skipped(transfer);
+                return;
+            }
+        }
+
+        makeDirectories(channel, RemoteDirectories.getParent(file));
+        InputStream in = transfer.openStream();
+        try {
+            channel.put(in, file, ChannelSftp.OVERWRITE);
+        } finally {
+            in.close();
+        }
+        // keep the local time so the next upload can tell it is unchanged
+        channel.setMtime(file, mtime);
+        queue.sent(transfer);
+    }
+
+    /**
+     * Creates a remote directory and any missing parents, unless it is
+     * already known to exist.
+     */
+    private void makeDirectories(ChannelSftp channel, String dir)
+        throws SftpException {
+        RemoteDirectories known = RemoteDirectories.getDefault();
+        Session session;
+        try {
+            session = channel.getSession();
+        } catch (JSchException e) {
+            throw new ScpException(e);
+        }
+        List<String> dirs = Collections.singletonList(dir);
+        if (dir.length() == 0 || known.getUnknown(session, dirs).isEmpty()) {
+            return;
+        }
+        SftpATTRS attrs = stat(channel, dir);
+        if (attrs == null) {
+            makeDirectories(channel, RemoteDirectories.getParent(dir));
+            log("Creating " + dir + "\n");
+            channel.mkdir(dir);
+        } else if (!attrs.isDir()) {
+            throw new ScpException("remote path " + dir
+                                   + " is not a directory");
+        }
+        known.add(session, dirs);
+    }
+
+    private void change(ChannelSftp channel, RemoteChange change)
+        throws SftpException {
+        String file = getPath(change.getRemotePath());
+        if (change.isDelete()) {
+            delete(channel, file);
+            return;
+        }
+        if (stat(channel, file) == null) {
+            missing.add(change);
+            return;
+        }
+        String newFile = getPath(change.getNewPath());
+        makeDirectories(channel, RemoteDirectories.getParent(newFile));
+        // sftp will not rename over an existing file
+        delete(channel, newFile);
+        channel.rename(file, newFile);
+    }
+
+    private void delete(ChannelSftp channel, String file)
+        throws SftpException {
+        try {
+            channel.rm(file);
+        } catch (SftpException e) {
+            if (e.id != ChannelSftp.SSH_FX_NO_SUCH_FILE) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Returns the attributes of a remote file, or null if it does not exist.
+     */
+    private static SftpATTRS stat(ChannelSftp channel, String path)
+        throws SftpException {
+        try {
+            return channel.stat(path);
+        } catch (SftpException e) {
+            if (e.id == ChannelSftp.SSH_FX_NO_SUCH_FILE) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the remote directory as sftp names it. sftp does not expand
+     * "~", but resolves relative paths against the home directory, so a
+     * leading "~" is dropped to name the same directory as the other
+     * transports.
+     */
+    private static String getSftpPath(String path) {
+        if (path.equals("~")) {
+            return ".";
+        }
+        if (path.startsWith("~/")) {
+            return path.substring(2);
+        }
+        return path;
+    }
+
+    private String getPath(String path) {
+        return remotePath.length() == 0 ? path : remotePath + "/" + path;
+    }
+}
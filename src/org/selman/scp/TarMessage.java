@@ -0,0 +1,250 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Daniel Selman}.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Daniel Selman - initial API and implementation and/or initial documentation
+ *******************************************************************************/
+package org.selman.scp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import com.jcraft.jsch.Channel;
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+/**
+ * Sends many files as a single tar stream, piped through one exec channel
+ * into "tar -x" on the remote host. The stream is generated as it is sent,
+ * without a temporary file, and may be gzip compressed. Unlike scp there is
+ * no acknowledgement per file, so the whole set is one streaming operation;
+ * but it also succeeds or fails as a whole.
+ */
+public class TarMessage extends AbstractSshMessage {
+
+    private static final int BLOCK_SIZE = 512;
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    private static final int NAME_LENGTH = 100;
+
+    private static final int PREFIX_LENGTH = 155;
+
+    private final List<Transfer> transfers;
+    private final String remotePath;
+    private final boolean compress;
+    private long bytesSent;
+
+    /**
+     * Constructor for TarMessage
+     * @param session the ssh session to use
+     * @param aTransfers the local files and their paths relative to the
+     *        remote directory
+     * @param aRemotePath the remote directory, which must exist
+     * @param compress if true the stream is gzip compressed
+     */
+    public TarMessage(Session session,
+                      List<Transfer> aTransfers,
+                      String aRemotePath,
+                      boolean compress) {
+        super(session);
+        this.transfers = aTransfers;
+        this.remotePath = aRemotePath;
+        this.compress = compress;
+    }
+
+    /**
+     * Carry out the transfer.
+     * @throws IOException on i/o errors
+     * @throws JSchException on ssh errors
+     */
+    public void execute() throws IOException, JSchException {
+        String cmd = "tar -x" + (compress ? "z" : "") + "f - -C "
+            + quotePath(remotePath);
+        Channel channel = openExecChannel(cmd);
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        ((ChannelExec) channel).setErrStream(err);
+        try {
+            OutputStream out = channel.getOutputStream();
+            channel.connect(getTimeout());
+
+            CountingOutputStream counter = new CountingOutputStream(out);
+            OutputStream tar = compress ? new GZIPOutputStream(counter,
+                                                               BUFFER_SIZE)
+                : counter;
+
+            List<Transfer> sorted = new ArrayList<Transfer>(transfers);
+            Collections.sort(sorted);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (Transfer transfer : sorted) {
+                writeEntry(tar, transfer, buffer);
+            }
+            // the archive ends with two empty blocks
+            tar.write(new byte[BLOCK_SIZE * 2]);
+            tar.close();
+            bytesSent = counter.count;
+
+            int status = waitForExit(channel);
+            if (status != 0) {
+                throw new ScpException("remote tar failed with status "
+                                       + status + ": "
+                                       + err.toString().trim());
+            }
+            log("done.\n");
+        } finally {
+            if (channel != null) {
+                channel.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Get the number of bytes sent over the channel, after compression.
+     * @return the number of bytes sent
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    private void writeEntry(OutputStream tar, Transfer transfer,
+                            byte[] buffer) throws IOException {
+        long size = transfer.getLength();
+        tar.write(header(transfer.getRemotePath(), size,
+                         transfer.getLastModified() / 1000));
+
+        // send exactly the size in the header even if the file grows; if it
+        // shrinks the entry cannot be completed, so the whole stream fails
+        InputStream in = transfer.openStream();
+        try {
+            long remaining = size;
+            while (remaining > 0) {
+                int len = in.read(buffer, 0,
+                                  (int) Math.min(buffer.length, remaining));
+                if (len <= 0) {
+                    throw new IOException("file shrank while sending "
+                                          + transfer);
+                }
+                tar.write(buffer, 0, len);
+                remaining -= len;
+            }
+        } finally {
+            in.close();
+        }
+
+        int padding = (int) ((BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE);
+        tar.write(new byte[padding]);
+    }
+
+    /**
+     * Builds a ustar header block for a regular file.
+     */
+    private static byte[] header(String path, long size, long mtime)
+        throws UnsupportedEncodingException {
+        byte[] name = path.getBytes("UTF-8");
+        byte[] prefix = new byte[0];
+        if (name.length > NAME_LENGTH) {
+            // split at the first '/' that leaves a name short enough, the
+            // rest of the path goes in the prefix
+            int split = path.indexOf('/');
+            while (split > 0
+                   && path.substring(split + 1).getBytes("UTF-8").length
+                   > NAME_LENGTH) {
+                split = path.indexOf('/', split + 1);
+            }
+            if (split <= 0) {
+                throw new ScpException("path too long for tar: " + path);
+            }
+            prefix = path.substring(0, split).getBytes("UTF-8");
+            name = path.substring(split + 1).getBytes("UTF-8");
+            if (prefix.length > PREFIX_LENGTH) {
+                throw new ScpException("path too long for tar: " + path);
+            }
+        }
+
+        byte[] header = new byte[BLOCK_SIZE];
+        System.arraycopy(name, 0, header, 0, name.length);
+        octal(header, 100, 8, 0644);
+        octal(header, 108, 8, 0);
+        octal(header, 116, 8, 0);
+        octal(header, 124, 12, size);
+        octal(header, 136, 12, mtime);
+        header[156] = '0';
+        System.arraycopy("ustar\u000000".getBytes("US-ASCII"), 0, header, 257,
+                         8);
+        System.arraycopy(prefix, 0, header, 345, prefix.length);
+
+        // the checksum is computed with its own field filled with spaces
+        for (int i = 148; i < 156; i++) {
+            header[i] = ' ';
+        }
+        long checksum = 0;
+        for (byte b : header) {
+            checksum += b & 0xff;
+        }
+        octal(header, 148, 7, checksum);
+        header[155] = ' ';
+        return header;
+    }
+
+    /**
+     * Writes a zero padded, NUL terminated octal number into a header field.
+     */
+    private static void octal(byte[] header, int offset, int length,
+                              long value) {
+        String digits = Long.toOctalString(value);
+        if (digits.length() > length - 1) {
+            throw new ScpException("value too large for tar header: "
+                                   + value);
+        }
+        int pad = length - 1 - digits.length();
+        for (int i = 0; i < pad; i++) {
+            header[offset + i] = '0';
+        }
+        for (int i = 0; i < digits.length(); i++) {
+            header[offset + pad + i] = (byte) digits.charAt(i);
+        }
+        header[offset + length - 1] = 0;
+    }
+
+    /**
+     * Counts the bytes written to the channel.
+     */
+    private static class CountingOutputStream extends OutputStream {
+        private final OutputStream out;
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Daniel Selman}.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Daniel Selman - initial API and implementation and/or initial documentation
+ *******************************************************************************/
+package org.selman.scp;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A local file and the path, relative to the remote directory, that it is
+ * copied to. The content sent may be given in memory instead of being read
+ * from the file.
+ */
+public class Transfer implements Comparable<Transfer> {
+
+    private final File localFile;
+    private final byte[] content;
+    private final String remotePath;
+
+    /**
+     * Constructor for Transfer.
+     * @param localFile the local file
+     * @param remotePath the '/' separated path of the file relative to the
+     *        remote directory
+     */
+    public Transfer(File localFile, String remotePath) {
+        this(localFile, null, remotePath);
+    }
+
+    /**
+     * Constructor for a Transfer of content held in memory, for example
+     * content that has just been generated, which is sent without reading
+     * the local file.
+     * @param localFile the local file the content belongs to, which gives
+     *        the modification time sent with it
+     * @param content the content to send, or null to read the local file
+     * @param remotePath the '/' separated path of the file relative to the
+     *        remote directory
+     */
+    public Transfer(File localFile, byte[] content, String remotePath) {
+        while (remotePath.startsWith("/")) {
+            remotePath = remotePath.substring(1);
+        }
+        if (remotePath.length() == 0 || remotePath.endsWith("/")) {
+            throw new ScpException("invalid remote path '" + remotePath + "'");
+        }
+        this.localFile = localFile;
+        this.content = content;
+        this.remotePath = remotePath;
+    }
+
+    /**
+     * Get the local file
+     * @return the local file
+     */
+    public File getLocalFile() {
+        return localFile;
+    }
+
+    /**
+     * Get the content held in memory
+     * @return the content, or null if it is read from the local file
+     */
+    public byte[] getContent() {
+        return content;
+    }
+
+    /**
+     * Get the number of bytes to send
+     * @return the length of the content
+     */
+    public long getLength() {
+        return content != null ? content.length : localFile.length();
+    }
+
+    /**
+     * Get the modification time of the local file
+     * @return the time in milliseconds
+     */
+    public long getLastModified() {
+        return localFile.lastModified();
+    }
+
+    /**
+     * Opens the content to send
+     * @return a stream of the content
+     * @throws IOException if the local file cannot be read
+     */
+    public InputStream openStream() throws IOException {
+        if (content != null) {
+            return new ByteArrayInputStream(content);
+        }
+        return new FileInputStream(localFile);
+    }
+
+    /**
+     * Get the remote path, relative to the remote directory
+     * @return the remote path
+     */
+    public String getRemotePath() {
+        return remotePath;
+    }
+
+    /**
+     * Orders transfers by remote path, which keeps the files of each remote
+     * directory together.
+     * @param that the transfer to compare with
+     * @return the comparison of the remote paths
+     */
+    public int compareTo(Transfer that) {
+        return remotePath.compareTo(that.remotePath);
+    }
+
+    public String toString() {
+        return localFile + " -> " + remotePath;
+    }
+}
@@ -0,0 +1,142 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Daniel Selman}.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Daniel Selman - initial API and implementation and/or initial documentation
+ *******************************************************************************/
+package org.selman.scp;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the transports by uploading the same local directory with each
+ * of them. Every run sends to a new remote directory below the one given, so
+ * that no run benefits from an earlier one, except for the last sftp run,
+ * which repeats an upload to show the cost of checking unchanged files.
+ * <p>
+ * Sessions are pooled, so only the first run pays for connecting.
+ */
+public class TransferBenchmark {
+
+    private static final int DEFAULT_ROUNDS = 3;
+
+    private final String todir;
+    private final String keyfile;
+    private final List<Transfer> transfers;
+    private final long bytes;
+    private final SessionPool pool = new SessionPool();
+    private int run;
+
+    public static void main(String[] args) {
+        if (args.length < 3 || args.length > 4) {
+            System.out.println("USAGE: <remote directory user@host:path> "
+                               + "<private key file> <local directory> "
+                               + "[rounds]");
+            System.exit(-1);
+        }
+        int rounds = args.length > 3 ? Integer.parseInt(args[3])
+            : DEFAULT_ROUNDS;
+
+        TransferBenchmark benchmark =
+            new TransferBenchmark(args[0], args[1], new File(args[2]));
+        try {
+            benchmark.run(rounds);
+        } finally {
+            benchmark.pool.closeAll();
+        }
+    }
+
+    private TransferBenchmark(String todir, String keyfile, File dir) {
+        this.todir = todir;
+        this.keyfile = keyfile;
+        this.transfers = new ArrayList<Transfer>();
+        this.bytes = collect(dir, "", transfers);
+    }
+
+    private void run(int rounds) {
+        System.out.println(transfers.size() + " files, " + bytes
+                           + " bytes, best of " + rounds + " rounds");
+        // warm up, so that no transport pays for the handshake
+        time("warm up", 1, false, false, 1);
+
+        time("scp", rounds, false, false, 1);
+        time("scp, 4 channels", rounds, false, false, 4);
+        time("tar", rounds, false, true, 1);
+        String last = time("sftp", rounds, true, false, 1);
+        time("sftp, 4 channels", rounds, true, false, 4);
+
+        Scp scp = newScp(last, true, false, 1);
+        long start = System.currentTimeMillis();
+        scp.execute();
+        report("sftp, unchanged", System.currentTimeMillis() - start,
+               scp.getSkipped() + " skipped");
+    }
+
+    /**
+     * Uploads the files with one transport, rounds times.
+     * @return the remote directory of the last round
+     */
+    private String time(String name, int rounds, boolean sftp,
+                        boolean tar, int channels) {
+        long best = Long.MAX_VALUE;
+        String dir = null;
+        for (int i = 0; i < rounds; i++) {
+            dir = todir + "/benchmark-" + System.currentTimeMillis() + "-"
+                + (run++);
+            Scp scp = newScp(dir, sftp, tar, channels);
+            long start = System.currentTimeMillis();
+            scp.execute();
+            best = Math.min(best, System.currentTimeMillis() - start);
+        }
+        report(name, best, "");
+        return dir;
+    }
+
+    private Scp newScp(String dir, boolean sftp, boolean tar, int channels) {
+        Scp scp = new Scp();
+        scp.setTodir(dir);
+        scp.setKeyfile(keyfile);
+        scp.setTrust(true);
+        scp.setSessionPool(pool);
+        scp.setTransfers(transfers);
+        scp.setSftp(sftp);
+        scp.setTarMode(tar);
+        scp.setChannels(channels);
+        return scp;
+    }
+
+    private void report(String name, long millis, String note) {
+        double seconds = Math.max(millis, 1) / 1000.0;
+        System.out.println(name + ": " + millis + " ms, "
+                           + Math.round(transfers.size() / seconds)
+                           + " files/s, "
+                           + Math.round(bytes / seconds / 1024) + " KB/s "
+                           + note);
+    }
+
+    private static long collect(File dir, String path,
+                                List<Transfer> transfers) {
+        long bytes = 0;
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        for (File file : files) {
+            String name = path.length() == 0 ? file.getName()
+                : path + "/" + file.getName();
+            if (file.isDirectory()) {
+                bytes += collect(file, name, transfers);
+            } else if (file.isFile()) {
+                transfers.add(new Transfer(file, name));
+                bytes += file.length();
+            }
+        }
+        return bytes;
+    }
+}
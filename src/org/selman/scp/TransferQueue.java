@@ -0,0 +1,164 @@
+/*******************************************************************************
+ * Copyright (c) 2011 Daniel Selman}.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Daniel Selman - initial API and implementation and/or initial documentation
+ *******************************************************************************/
+package org.selman.scp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The files of a multi-file transfer, shared by the channels sending them.
+ * Each channel takes the next file from the queue, so a slow file on one
+ * channel does not hold up the others. A file that fails is recorded and
+ * does not stop the rest of the transfer.
+ */
+public class TransferQueue {
+
+    private final LinkedList<Transfer> pending;
+    private final Map<Transfer, Exception> failures =
+        new LinkedHashMap<Transfer, Exception>();
+    private int sent;
+    private int skipped;
+    private long bytes;
+    private long millis;
+
+    /**
+     * Constructor for TransferQueue.
+     * @param transfers the files to send, they are sent in order of remote
+     *        path so that the files of each directory are sent together
+     */
+    public TransferQueue(List<Transfer> transfers) {
+        List<Transfer> sorted = new ArrayList<Transfer>(transfers);
+        Collections.sort(sorted);
+        pending = new LinkedList<Transfer>(sorted);
+    }
+
+    /**
+     * Takes the next file to send.
+     * @return the next file, or null if there are none left
+     */
+    public synchronized Transfer next() {
+        return pending.isEmpty() ? null : pending.removeFirst();
+    }
+
+    /**
+     * Puts back a file that could not be sent because the connection was
+     * lost, so that it is sent again over a new connection.
+     * @param transfer the file
+     */
+    public synchronized void retry(Transfer transfer) {
+        pending.addFirst(transfer);
+    }
+
+    /**
+     * Records that a file was sent.
+     * @param transfer the file
+     */
+    public synchronized void sent(Transfer transfer) {
+        sent++;
+    }
+
+    /**
+     * Records that a file was sent, and how long sending its content took.
+     * @param transfer the file
+     * @param length the number of bytes sent
+     * @param time the time taken, in milliseconds
+     */
+    public synchronized void sent(Transfer transfer, long length, long time) {
+        sent++;
+        bytes += length;
+        millis += time;
+    }
+
+    /**
+     * Records that a file was not sent because the remote host already
+     * has it. It counts as sent.
+     * @param transfer the file
+     */
+    public synchronized void skipped(Transfer transfer) {
+        sent++;
+        skipped++;
+    }
+
+    /**
+     * Records that a file failed.
+     * @param transfer the file
+     * @param e the cause of the failure
+     */
+    public synchronized void failed(Transfer transfer, Exception e) {
+        failures.put(transfer, e);
+    }
+
+    /**
+     * Records that every file not yet sent failed, when the transfer is
+     * abandoned.
+     * @param e the cause of the failure
+     */
+    public synchronized void failRemaining(Exception e) {
+        while (!pending.isEmpty()) {
+            failures.put(pending.removeFirst(), e);
+        }
+    }
+
+    /**
+     * Returns true if no files are left to send.
+     * @return true if the queue is empty
+     */
+    public synchronized boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    /**
+     * Get the number of files sent.
+     * @return the number of files sent
+     */
+    public synchronized int getSent() {
+        return sent;
+    }
+
+    /**
+     * Get the number of files skipped because the remote host already had
+     * them.
+     * @return the number of files skipped
+     */
+    public synchronized int getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * Get the number of bytes sent by the files recorded with their
+     * length.
+     * @return the number of bytes
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Get the time taken to send the files recorded with their length,
+     * summed over the channels that sent them.
+     * @return the time in milliseconds
+     */
+    public synchronized long getMillis() {
+        return millis;
+    }
+
+    /**
+     * Get the files that failed and the cause of each failure.
+     * @return the failures, in the order they happened
+     */
+    public synchronized Map<Transfer, Exception> getFailures() {
+        return new LinkedHashMap<Transfer, Exception>(failures);
+    }
+}